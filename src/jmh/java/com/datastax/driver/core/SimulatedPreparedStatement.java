@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.driver.core;
+
+import com.datastax.driver.core.policies.RetryPolicy;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+// A PreparedStatement that never saw a cluster, for the offline harness.
+// It lives in the driver's package because ColumnDefinitions and
+// PreparedId can only be built from here.
+public class SimulatedPreparedStatement implements PreparedStatement {
+    private final String query;
+    private final String keyspace;
+    private final PreparedId preparedId;
+    private final ColumnDefinitions variables;
+    private ConsistencyLevel consistencyLevel = null;
+    private ConsistencyLevel serialConsistencyLevel = null;
+    private RetryPolicy retryPolicy = null;
+    private ByteBuffer routingKey = null;
+    private Map<String, ByteBuffer> outgoingPayload = null;
+    private Boolean idempotent = null;
+    private boolean tracing = false;
+
+    // variables are the bind markers, resultColumns what a SELECT returns
+    public SimulatedPreparedStatement(String inQuery, String inKeyspace,
+                                      ColumnDefinitions inVariables,
+                                      ColumnDefinitions inResultColumns,
+                                      int[] inRoutingKeyIndexes) {
+        query = inQuery;
+        keyspace = inKeyspace;
+        variables = inVariables;
+        preparedId = new PreparedId(MD5Digest.wrap(new byte[16]), inVariables,
+                inResultColumns, inRoutingKeyIndexes, ProtocolVersion.V4);
+    }
+
+    public static ColumnDefinitions definitions(String keyspace, String table,
+                                                List<String> names,
+                                                List<DataType> types) {
+        ColumnDefinitions.Definition[] defs = new ColumnDefinitions.Definition[names.size()];
+        for (int i = 0; i < defs.length; i++)
+            defs[i] = new ColumnDefinitions.Definition(keyspace, table, names.get(i), types.get(i));
+        return new ColumnDefinitions(defs, CodecRegistry.DEFAULT_INSTANCE);
+    }
+
+    public ColumnDefinitions getVariables() {
+        return variables;
+    }
+
+    public BoundStatement bind(Object... values) {
+        return new BoundStatement(this).bind(values);
+    }
+
+    public BoundStatement bind() {
+        return new BoundStatement(this);
+    }
+
+    public PreparedStatement setRoutingKey(ByteBuffer inRoutingKey) {
+        routingKey = inRoutingKey;
+        return this;
+    }
+
+    public PreparedStatement setRoutingKey(ByteBuffer... routingKeyComponents) {
+        routingKey = SimpleStatement.compose(routingKeyComponents);
+        return this;
+    }
+
+    public ByteBuffer getRoutingKey() {
+        return routingKey;
+    }
+
+    public PreparedStatement setConsistencyLevel(ConsistencyLevel inConsistencyLevel) {
+        consistencyLevel = inConsistencyLevel;
+        return this;
+    }
+
+    public ConsistencyLevel getConsistencyLevel() {
+        return consistencyLevel;
+    }
+
+    public PreparedStatement setSerialConsistencyLevel(ConsistencyLevel inSerialConsistencyLevel) {
+        serialConsistencyLevel = inSerialConsistencyLevel;
+        return this;
+    }
+
+    public ConsistencyLevel getSerialConsistencyLevel() {
+        return serialConsistencyLevel;
+    }
+
+    public String getQueryString() {
+        return query;
+    }
+
+    public String getQueryKeyspace() {
+        return keyspace;
+    }
+
+    public PreparedStatement enableTracing() {
+        tracing = true;
+        return this;
+    }
+
+    public PreparedStatement disableTracing() {
+        tracing = false;
+        return this;
+    }
+
+    public boolean isTracing() {
+        return tracing;
+    }
+
+    public PreparedStatement setRetryPolicy(RetryPolicy inRetryPolicy) {
+        retryPolicy = inRetryPolicy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public PreparedId getPreparedId() {
+        return preparedId;
+    }
+
+    public Map<String, ByteBuffer> getIncomingPayload() {
+        return null;
+    }
+
+    public Map<String, ByteBuffer> getOutgoingPayload() {
+        return outgoingPayload;
+    }
+
+    public PreparedStatement setOutgoingPayload(Map<String, ByteBuffer> payload) {
+        outgoingPayload = payload;
+        return this;
+    }
+
+    public CodecRegistry getCodecRegistry() {
+        return CodecRegistry.DEFAULT_INSTANCE;
+    }
+
+    public PreparedStatement setIdempotent(Boolean inIdempotent) {
+        idempotent = inIdempotent;
+        return this;
+    }
+
+    public Boolean isIdempotent() {
+        return idempotent;
+    }
+}
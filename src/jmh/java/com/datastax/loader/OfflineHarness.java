@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.codahale.metrics.Snapshot;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimulatedPreparedStatement;
+import com.datastax.loader.futures.AdaptiveInFlightBudget;
+import com.datastax.loader.futures.InFlightBudget;
+import com.datastax.loader.futures.RetryQueue;
+import com.datastax.loader.parser.BenchmarkRows;
+import com.datastax.loader.parser.BenchmarkRows.Column;
+import com.datastax.loader.util.LoaderMetrics;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs CqlDelimLoadTask or CqlDelimUnload.ThreadExecute end-to-end against
+// a SimulatedSession, and reports rows/s, allocation and the submission
+// latency - no cluster needed.  Run with
+//   gradle harness -PharnessArgs='-mode load -rows 1000000 -latencyMs 2'
+public class OfflineHarness {
+    private static final String KEYSPACE = "sim";
+    private static final String TABLE = "bench";
+    private static final int NUM_TEMPLATES = 1024;
+
+    private String mode = "load";
+    private long rows = 1000000;
+    private String shape = BenchmarkRows.NARROW;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int numFutures = 1000;
+    private boolean adaptiveFutures = false;
+    private int batchSize = 1;
+    private int batchSizeKB = 0;
+    private double rate = Double.MAX_VALUE;
+    private SimulatedSession.Distribution distribution = SimulatedSession.Distribution.EXPONENTIAL;
+    private double latencyMs = 1.0;
+    private double errorRate = 0;
+    private int numHosts = 3;
+    private double hostSkew = 1.0;
+    private int pageSize = 5000;
+    private int delayedRetries = 0;
+    private int numFiles = 0;
+    private int coalesce = 0;
+    private boolean specializedBind = false;
+    private int textDictionary = 1024;
+
+    public static void main(String[] args) throws Exception {
+        OfflineHarness harness = new OfflineHarness();
+        if (!harness.parseArgs(args)) {
+            System.err.println(usage());
+            System.exit(-1);
+        }
+        harness.run();
+        System.exit(0);
+    }
+
+    private static String usage() {
+        StringBuilder usage = new StringBuilder("Usage: [OPTIONS]\n");
+        usage.append("OPTIONS:\n");
+        usage.append("  -mode <load|unload>            What to run [load]\n");
+        usage.append("  -rows <numRows>                Number of rows [1000000]\n");
+        usage.append("  -shape <narrow|wide>           Row shape (4 or 24 columns) [narrow]\n");
+        usage.append("  -numThreads <numThreads>       Number of threads (one token range each when unloading) [num cores]\n");
+        usage.append("  -numFutures <numFutures>       In-flight window [1000]\n");
+        usage.append("  -adaptiveFutures [false|true]  Use the adaptive in-flight window [false]\n");
+        usage.append("  -batchSize <batchSize>         Number of INSERTs to batch together [1]\n");
+        usage.append("  -batchSizeKB <KB>              As CqlDelimLoad -batchSizeKB [0]\n");
+        usage.append("  -rate <rows-per-second>        Rate limit [unlimited]\n");
+        usage.append("  -latencyDist <dist>            FIXED, EXPONENTIAL or LOGNORMAL [EXPONENTIAL]\n");
+        usage.append("  -latencyMs <ms>                Mean request latency [1.0]\n");
+        usage.append("  -errorRate <fraction>          Fraction of requests that time out [0]\n");
+        usage.append("  -numHosts <numHosts>           Number of simulated hosts [3]\n");
+        usage.append("  -hostSkew <factor>             Latency of the slowest host relative to the fastest [1.0]\n");
+        usage.append("  -pageSize <rows>               Unload page size [5000]\n");
+        usage.append("  -delayedRetries <numRetries>   Retry failed INSERTs later, with backoff [0]\n");
+        usage.append("  -numFiles <numFiles>           Number of load input files [numThreads]\n");
+        usage.append("  -coalesce <numFiles>           Load the files through long-lived tasks, as CqlDelimLoad -coalesce [0]\n");
+        usage.append("  -specializedBind [false|true]  Parse and bind as CqlDelimLoad -specializedBind [false]\n");
+        usage.append("  -textDictionary <# values>     As CqlDelimLoad -textDictionary [1024]\n");
+        return usage.toString();
+    }
+
+    private boolean parseArgs(String[] args) {
+        if (0 != args.length % 2) {
+            System.err.println("Not an even number of parameters");
+            return false;
+        }
+        Map<String, String> amap = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2)
+            amap.put(args[i], args[i + 1]);
+
+        String tkey;
+        if (null != (tkey = amap.remove("-mode"))) mode = tkey;
+        if (null != (tkey = amap.remove("-rows"))) rows = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-shape"))) shape = tkey;
+        if (null != (tkey = amap.remove("-numThreads"))) numThreads = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-numFutures"))) numFutures = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-adaptiveFutures"))) adaptiveFutures = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-batchSize"))) batchSize = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-batchSizeKB"))) batchSizeKB = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-rate"))) rate = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-latencyDist"))) distribution = SimulatedSession.Distribution.valueOf(tkey.toUpperCase());
+        if (null != (tkey = amap.remove("-latencyMs"))) latencyMs = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-errorRate"))) errorRate = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-numHosts"))) numHosts = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-hostSkew"))) hostSkew = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-pageSize"))) pageSize = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-delayedRetries"))) delayedRetries = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-numFiles"))) numFiles = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-coalesce"))) coalesce = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-specializedBind"))) specializedBind = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-textDictionary"))) textDictionary = Integer.parseInt(tkey);
+
+        if (!amap.isEmpty()) {
+            for (String k : amap.keySet())
+                System.err.println("Unrecognized option: " + k);
+            return false;
+        }
+        if (!"load".equals(mode) && !"unload".equals(mode)) {
+            System.err.println("-mode must be load or unload");
+            return false;
+        }
+        if ((0 >= rows) || (0 >= numThreads) || (0 >= numFutures) || (0 >= batchSize)
+                || (0 >= numHosts) || (0 >= pageSize) || (0 >= rate)) {
+            System.err.println("-rows, -numThreads, -numFutures, -batchSize, -numHosts, -pageSize and -rate must be positive");
+            return false;
+        }
+        if ((0 > numFiles) || (0 > coalesce) || (0 > textDictionary) || (0 > batchSizeKB)) {
+            System.err.println("-numFiles, -coalesce, -textDictionary and -batchSizeKB must be non-negative");
+            return false;
+        }
+        if ((0 >= latencyMs) || (0 > errorRate) || (1 < errorRate) || (1 > hostSkew)) {
+            System.err.println("-latencyMs must be positive, -errorRate in [0,1] and -hostSkew at least 1");
+            return false;
+        }
+        return true;
+    }
+
+    private void run() throws Exception {
+        List<Column> columns = BenchmarkRows.columns(shape);
+        List<String> names = new ArrayList<>();
+        List<DataType> types = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            names.add("c" + i);
+            types.add(columns.get(i).dataType());
+        }
+        String schema = KEYSPACE + "." + TABLE + "(" + String.join(",", names) + ")";
+        Object[][] values = BenchmarkRows.values(columns, NUM_TEMPLATES, 42);
+        SimulatedSession simulated = new SimulatedSession(distribution, latencyMs,
+                errorRate, numHosts, hostSkew);
+
+        System.err.println("*** Simulating " + mode + " of " + rows + " " + shape + " rows");
+        if ("load".equals(mode))
+            runLoad(schema, names, types, BenchmarkRows.lines(columns, values), simulated);
+        else
+            runUnload(schema, names, types, values, simulated);
+    }
+
+    private void runLoad(String schema, List<String> names, List<DataType> types,
+                         String[] lines, SimulatedSession simulated)
+            throws IOException, ParseException, InterruptedException, ExecutionException {
+        File dir = Files.createTempDirectory("loader-harness").toFile();
+        List<File> files = new ArrayList<>();
+        int tNumFiles = (0 < numFiles) ? numFiles : numThreads;
+        for (int t = 0; t < tNumFiles; t++) {
+            File file = new File(dir, "input" + t + ".csv");
+            try (PrintStream ps = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (long r = t; r < rows; r += tNumFiles)
+                    ps.println(lines[(int) (r % lines.length)]);
+            }
+            files.add(file);
+        }
+
+        CqlDelimParser cdp = new CqlDelimParser(schema, types, Collections.singletonList(names.get(0)),
+                null, null, BenchmarkRows.DATE_FORMAT, null, null, null, true, null, null, null);
+        cdp.setTextDictionary(textDictionary);
+        ColumnDefinitions variables = SimulatedPreparedStatement.definitions(KEYSPACE, TABLE, names, types);
+        ColumnDefinitions none = SimulatedPreparedStatement.definitions(KEYSPACE, TABLE,
+                Collections.<String>emptyList(), Collections.<DataType>emptyList());
+        PreparedStatement statement = new SimulatedPreparedStatement(cdp.generateInsert(),
+                KEYSPACE, variables, none, new int[]{0});
+        statement.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+
+        RateLimiter rateLimiter = new RateLimiter(rate, 0, null, null);
+        Session session = new RateLimitedSession(simulated, rateLimiter);
+        InFlightBudget inFlightBudget = adaptiveFutures
+                ? new AdaptiveInFlightBudget(numFutures, 1, Math.max(numFutures, 10000), System.err)
+                : new InFlightBudget(numFutures);
+        LoaderControl control = new LoaderControl(rateLimiter, inFlightBudget);
+        LoaderMetrics metrics = new LoaderMetrics();
+        RetryQueue retryQueue = (0 < delayedRetries)
+                ? new RetryQueue(delayedRetries, 100, 10000, 100, 64 * 1024 * 1024, simulated) : null;
+
+        List<Callable<Long>> tasks = new ArrayList<>();
+        if (0 < coalesce) {
+            Queue<FileSplit> queue = new ConcurrentLinkedQueue<>(FileSplit.plan(files, 0));
+            metrics.getInputsQueued().inc(queue.size());
+            for (int t = 0; t < numThreads; t++) {
+                CqlDelimParser parser = cdp.duplicate();
+                tasks.add(new CqlDelimCoalesceTask(queue,
+                        split -> {
+                            CqlDelimLoadTask task = new CqlDelimLoadTask(Long.MAX_VALUE, 0, Long.MAX_VALUE,
+                                    dir.getPath(), split, session, statement, inFlightBudget,
+                                    null, null, retryQueue, batchSize, 2, Long.MAX_VALUE, null, null,
+                                    false, parser, control, metrics);
+                            task.setSpecializedBind(specializedBind);
+                            task.setMaxBatchBytes(batchSizeKB * 1024);
+                            return task;
+                        },
+                        coalesce, control, metrics));
+            }
+        } else {
+            for (File file : files) {
+                CqlDelimLoadTask task = new CqlDelimLoadTask(Long.MAX_VALUE, 0, Long.MAX_VALUE,
+                        dir.getPath(), file, session, statement, inFlightBudget,
+                        null, null, retryQueue, batchSize, 2, Long.MAX_VALUE, null, null,
+                        false, cdp.duplicate(), control, metrics);
+                task.setSpecializedBind(specializedBind);
+                task.setMaxBatchBytes(batchSizeKB * 1024);
+                tasks.add(task);
+            }
+        }
+
+        Measurement m = run(tasks);
+        Snapshot submit = metrics.getSubmit().getSnapshot();
+        Snapshot latency = metrics.getInsertLatency().getSnapshot();
+        m.report(rows);
+        System.out.println(String.format("submission latency:  p50 %.1f us  p99 %.1f us  max %.1f us",
+                submit.getMedian() / 1e3, submit.get99thPercentile() / 1e3, submit.getMax() / 1e3));
+        System.out.println(String.format("request latency:     p50 %.2f ms  p99 %.2f ms  (%d errors, %d retries)",
+                latency.getMedian() / 1e6, latency.get99thPercentile() / 1e6,
+                metrics.getInsertErrors().getCount(), metrics.getInsertRetries().getCount()));
+        System.out.println("output in " + dir);
+
+        rateLimiter.close();
+        simulated.close();
+    }
+
+    private void runUnload(String schema, List<String> names, List<DataType> types,
+                           Object[][] values, SimulatedSession simulated)
+            throws ParseException, InterruptedException, ExecutionException {
+        CqlDelimUnload unload = new CqlDelimUnload();
+        Session session = unload.attach(simulated);
+        CqlDelimParser cdp = new CqlDelimParser(schema, types, Collections.singletonList(names.get(0)),
+                null, null, BenchmarkRows.DATE_FORMAT, null, null, null, false, null, null, null);
+        ColumnDefinitions columns = SimulatedPreparedStatement.definitions(KEYSPACE, TABLE, names, types);
+        ColumnDefinitions none = SimulatedPreparedStatement.definitions(KEYSPACE, TABLE,
+                Collections.<String>emptyList(), Collections.<DataType>emptyList());
+        PreparedStatement statement = new SimulatedPreparedStatement(cdp.generateSelect(),
+                KEYSPACE, none, columns, new int[0]);
+        Row[] templates = new Row[values.length];
+        for (int i = 0; i < values.length; i++)
+            templates[i] = BenchmarkRows.row(values[i]);
+        simulated.setResult(columns, templates, rows / numThreads, pageSize);
+
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            PrintStream writer = new PrintStream(new BufferedOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+            tasks.add(unload.new ThreadExecute(cdp.duplicate(), statement, writer,
+                    "harness." + t, null, null, session));
+        }
+
+        Measurement m = run(tasks);
+        m.report(unload.metrics.getUnloadRows().getCount());
+        System.out.println("pages fetched:       " + unload.metrics.getUnloadPages().getCount());
+        unload.cleanup();
+    }
+
+    private Measurement run(List<Callable<Long>> tasks) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        // start the threads before measuring, so their allocation is counted
+        executor.invokeAll(Collections.nCopies(numThreads, () -> 0L));
+        Measurement m = new Measurement();
+        List<Future<Long>> results = executor.invokeAll(tasks);
+        for (Future<Long> res : results)
+            res.get();
+        m.stop();
+        executor.shutdown();
+        return m;
+    }
+
+    // Wall time and bytes allocated by all threads that are alive at the end
+    private static class Measurement {
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> startAllocated = allocated();
+        private final long start = System.nanoTime();
+        private long elapsed;
+        private long bytes;
+
+        private Map<Long, Long> allocated() {
+            Map<Long, Long> map = new HashMap<>();
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++)
+                map.put(ids[i], bytes[i]);
+            return map;
+        }
+
+        void stop() {
+            elapsed = System.nanoTime() - start;
+            bytes = 0;
+            for (Map.Entry<Long, Long> me : allocated().entrySet()) {
+                Long before = startAllocated.get(me.getKey());
+                bytes += me.getValue() - ((null == before) ? 0 : before);
+            }
+        }
+
+        void report(long numRows) {
+            double seconds = elapsed / 1e9;
+            System.out.println(String.format("rows:                %d in %.2f s", numRows, seconds));
+            System.out.println(String.format("throughput:          %.0f rows/s", numRows / seconds));
+            System.out.println(String.format("allocation:          %.1f MB/s  (%d bytes/row)",
+                    bytes / seconds / (1024 * 1024), (0 == numRows) ? 0 : bytes / numRows));
+        }
+    }
+}
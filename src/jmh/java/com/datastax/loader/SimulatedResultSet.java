@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.LockSupport;
+
+// Pages through a number of synthetic rows.  Like the driver's result
+// set, running out of a page blocks for one request latency while the
+// next one is "fetched".
+class SimulatedResultSet implements ResultSet {
+    private final ColumnDefinitions columns;
+    private final Row[] rows;
+    private final long total;
+    private final int pageSize;
+    private final SimulatedSession session;
+    private long served = 0;
+    private int availableInPage;
+
+    SimulatedResultSet(ColumnDefinitions inColumns, Row[] inRows, long inTotal,
+                       int inPageSize, SimulatedSession inSession) {
+        columns = inColumns;
+        rows = inRows;
+        total = inTotal;
+        pageSize = inPageSize;
+        session = inSession;
+        availableInPage = (int) Math.min(pageSize, total);
+    }
+
+    public ColumnDefinitions getColumnDefinitions() {
+        return columns;
+    }
+
+    public boolean isExhausted() {
+        return (0 == availableInPage) && isFullyFetched();
+    }
+
+    private boolean hasNext() {
+        if ((0 == availableInPage) && (served < total)) {
+            LockSupport.parkNanos(session.latencyNanos());
+            availableInPage = (int) Math.min(pageSize, total - served);
+        }
+        return 0 < availableInPage;
+    }
+
+    public Row one() {
+        if (!hasNext())
+            return null;
+        availableInPage--;
+        return rows[(int) (served++ % rows.length)];
+    }
+
+    public List<Row> all() {
+        List<Row> all = new ArrayList<>();
+        Row row;
+        while (null != (row = one()))
+            all.add(row);
+        return all;
+    }
+
+    public Iterator<Row> iterator() {
+        return new Iterator<Row>() {
+            public boolean hasNext() {
+                return SimulatedResultSet.this.hasNext();
+            }
+
+            public Row next() {
+                Row row = one();
+                if (null == row)
+                    throw new NoSuchElementException();
+                return row;
+            }
+        };
+    }
+
+    public int getAvailableWithoutFetching() {
+        return availableInPage;
+    }
+
+    public boolean isFullyFetched() {
+        return served + availableInPage >= total;
+    }
+
+    public ListenableFuture<ResultSet> fetchMoreResults() {
+        return Futures.<ResultSet>immediateFuture(this);
+    }
+
+    public ExecutionInfo getExecutionInfo() {
+        return null;
+    }
+
+    public List<ExecutionInfo> getAllExecutionInfo() {
+        return Collections.emptyList();
+    }
+
+    public boolean wasApplied() {
+        return true;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+// An in-process stand-in for a cluster.  Requests complete on a small
+// pool of "I/O" threads after a latency drawn from the configured
+// distribution, scaled by the (randomly picked) host's skew factor.
+// Queries (execute) return synthetic pages of rows.
+public class SimulatedSession extends EnhancedSession {
+    public enum Distribution {FIXED, EXPONENTIAL, LOGNORMAL}
+
+    private static final double LOGNORMAL_SIGMA = 1.0;
+    private final ScheduledExecutorService ioThreads;
+    private final Distribution distribution;
+    private final double meanLatencyNanos;
+    private final double errorRate;
+    private final double[] hostFactors;
+    private final ResultSet writeResult;
+    private ColumnDefinitions resultColumns = null;
+    private Row[] rows = null;
+    private long rowsPerQuery = 0;
+    private int pageSize = 5000;
+    private volatile boolean closed = false;
+
+    // The slowest of numHosts hosts is hostSkew times slower than the fastest
+    public SimulatedSession(Distribution inDistribution, double inMeanLatencyMillis,
+                            double inErrorRate, int numHosts, double hostSkew) {
+        super(null);
+        distribution = inDistribution;
+        meanLatencyNanos = inMeanLatencyMillis * 1e6;
+        errorRate = inErrorRate;
+        hostFactors = new double[numHosts];
+        for (int i = 0; i < numHosts; i++)
+            hostFactors[i] = (1 == numHosts) ? 1.0 : 1.0 + (hostSkew - 1.0) * i / (numHosts - 1);
+        ioThreads = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "simulated-io");
+            t.setDaemon(true);
+            return t;
+        });
+        writeResult = new SimulatedResultSet(null, new Row[0], 0, 1, this);
+    }
+
+    // What execute() returns: rowsPerQuery rows, cycling through rows
+    public void setResult(ColumnDefinitions inColumns, Row[] inRows,
+                          long inRowsPerQuery, int inPageSize) {
+        resultColumns = inColumns;
+        rows = inRows;
+        rowsPerQuery = inRowsPerQuery;
+        pageSize = inPageSize;
+    }
+
+    long latencyNanos() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double latency;
+        switch (distribution) {
+            case FIXED:
+                latency = meanLatencyNanos;
+                break;
+            case EXPONENTIAL:
+                latency = -meanLatencyNanos * Math.log(1.0 - random.nextDouble());
+                break;
+            default:
+                double mu = Math.log(meanLatencyNanos) - LOGNORMAL_SIGMA * LOGNORMAL_SIGMA / 2;
+                latency = Math.exp(mu + LOGNORMAL_SIGMA * random.nextGaussian());
+                break;
+        }
+        return (long) (latency * hostFactors[random.nextInt(hostFactors.length)]);
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(Statement statement) {
+        final SimulatedFuture future = new SimulatedFuture();
+        final boolean fail = (errorRate > 0) && (ThreadLocalRandom.current().nextDouble() < errorRate);
+        ioThreads.schedule(() -> {
+            if (fail)
+                future.fail(new WriteTimeoutException(ConsistencyLevel.LOCAL_ONE, WriteType.SIMPLE, 1, 0));
+            else
+                future.succeed(writeResult);
+        }, latencyNanos(), TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    // Fetching the first page costs one request latency, like the driver
+    @Override
+    public ResultSet execute(Statement statement) {
+        LockSupport.parkNanos(latencyNanos());
+        return new SimulatedResultSet(resultColumns, rows, rowsPerQuery, pageSize, this);
+    }
+
+    @Override
+    public Cluster getCluster() {
+        return null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ioThreads.shutdownNow();
+    }
+
+    static class SimulatedFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+        void succeed(ResultSet rs) {
+            set(rs);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        public ResultSet getUninterruptibly() {
+            try {
+                return Uninterruptibles.getUninterruptibly(this);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+            try {
+                return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Row;
+import com.univocity.parsers.csv.CsvParser;
+import com.univocity.parsers.csv.CsvParserSettings;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Column types and generated rows shared by the benchmarks.  Lines are
+// produced with the parsers' own format(), so they parse back cleanly.
+public final class BenchmarkRows {
+    public static final String NARROW = "narrow";
+    public static final String WIDE = "wide";
+    public static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+    private static final String WORDS = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    public enum Column {
+        INT, BIGINT, DOUBLE, TEXT, TIMESTAMP, UUID, DECIMAL, BLOB, INET, LIST, SET, MAP;
+
+        public DataType dataType() {
+            switch (this) {
+                case INT:
+                    return DataType.cint();
+                case BIGINT:
+                    return DataType.bigint();
+                case DOUBLE:
+                    return DataType.cdouble();
+                case TEXT:
+                    return DataType.text();
+                case TIMESTAMP:
+                    return DataType.timestamp();
+                case UUID:
+                    return DataType.uuid();
+                case DECIMAL:
+                    return DataType.decimal();
+                case BLOB:
+                    return DataType.blob();
+                case INET:
+                    return DataType.inet();
+                case LIST:
+                    return DataType.list(DataType.cint());
+                case SET:
+                    return DataType.set(DataType.text());
+                case MAP:
+                    return DataType.map(DataType.text(), DataType.cint());
+                default:
+                    throw new IllegalStateException(name());
+            }
+        }
+
+        // As CqlDelimParser sets them up: the loader's number parsers
+        // accept grouping, the unloader's do not write it
+        public Parser parser(boolean loader) {
+            switch (this) {
+                case INT:
+                    return new IntegerParser(null, loader);
+                case BIGINT:
+                    return new LongParser(null, loader);
+                case DOUBLE:
+                    return new DoubleParser(null, loader);
+                case TEXT:
+                    return new StringParser();
+                case TIMESTAMP:
+                    return new DateParser(DATE_FORMAT);
+                case UUID:
+                    return new UUIDParser();
+                case DECIMAL:
+                    return new BigDecimalParser();
+                case BLOB:
+                    return new ByteBufferParser();
+                case INET:
+                    return new InetAddressParser();
+                case LIST:
+                    return new ListParser(new IntegerParser(null, loader), ',', '[', ']');
+                case SET:
+                    return new SetParser(new StringParser(), ',', '{', '}');
+                case MAP:
+                    return new MapParser(new StringParser(), new IntegerParser(null, loader),
+                            ',', '{', '}', ':');
+                default:
+                    throw new IllegalStateException(name());
+            }
+        }
+
+        public Object value(Random random) {
+            switch (this) {
+                case INT:
+                    return random.nextInt(1000000);
+                case BIGINT:
+                    return random.nextLong();
+                case DOUBLE:
+                    return random.nextDouble() * 1000;
+                case TEXT:
+                    return text(random, 8 + random.nextInt(24));
+                case TIMESTAMP:
+                    return new Date(1451606400000L + (random.nextLong() & 0xffffffffffL));
+                case UUID:
+                    return new java.util.UUID(random.nextLong(), random.nextLong());
+                case DECIMAL:
+                    return BigDecimal.valueOf(random.nextLong() % 100000000, 2);
+                case BLOB:
+                    byte[] bytes = new byte[16 + random.nextInt(48)];
+                    random.nextBytes(bytes);
+                    return ByteBuffer.wrap(bytes);
+                case INET:
+                    try {
+                        return InetAddress.getByAddress(new byte[]{10, (byte) random.nextInt(256),
+                                (byte) random.nextInt(256), (byte) random.nextInt(256)});
+                    } catch (UnknownHostException e) {
+                        throw new IllegalStateException(e);
+                    }
+                case LIST:
+                    List<Object> list = new ArrayList<>();
+                    for (int i = random.nextInt(8); i >= 0; i--)
+                        list.add(random.nextInt(1000));
+                    return list;
+                case SET:
+                    Set<Object> set = new HashSet<>();
+                    for (int i = random.nextInt(8); i >= 0; i--)
+                        set.add(text(random, 4 + random.nextInt(8)));
+                    return set;
+                case MAP:
+                    Map<Object, Object> map = new HashMap<>();
+                    for (int i = random.nextInt(8); i >= 0; i--)
+                        map.put(text(random, 4 + random.nextInt(8)), random.nextInt(1000));
+                    return map;
+                default:
+                    throw new IllegalStateException(name());
+            }
+        }
+    }
+
+    private BenchmarkRows() {
+    }
+
+    private static String text(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = WORDS.charAt(random.nextInt(WORDS.length()));
+        return new String(chars);
+    }
+
+    // narrow: a typical time series row, wide: every type twice
+    public static List<Column> columns(String shape) {
+        if (NARROW.equals(shape))
+            return Arrays.asList(Column.INT, Column.TEXT, Column.TIMESTAMP, Column.DOUBLE);
+        if (WIDE.equals(shape)) {
+            List<Column> columns = new ArrayList<>();
+            columns.addAll(Arrays.asList(Column.values()));
+            columns.addAll(Arrays.asList(Column.values()));
+            return columns;
+        }
+        throw new IllegalArgumentException("Unknown row shape: " + shape);
+    }
+
+    public static DelimParser delimParser(List<Column> columns, boolean loader) {
+        DelimParser delimParser = new DelimParser(",", "", '"', '\\', null);
+        for (Column column : columns)
+            delimParser.add(column.parser(loader));
+        return delimParser;
+    }
+
+    public static Object[][] values(List<Column> columns, int numRows, long seed) {
+        Random random = new Random(seed);
+        Object[][] rows = new Object[numRows][];
+        for (int r = 0; r < numRows; r++) {
+            rows[r] = new Object[columns.size()];
+            for (int c = 0; c < columns.size(); c++)
+                rows[r][c] = columns.get(c).value(random);
+        }
+        return rows;
+    }
+
+    public static String[] lines(List<Column> columns, Object[][] values) {
+        List<Parser> parsers = new ArrayList<>();
+        for (Column column : columns)
+            parsers.add(column.parser(false));
+        String[] lines = new String[values.length];
+        for (int r = 0; r < values.length; r++) {
+            StringBuilder sb = new StringBuilder();
+            for (int c = 0; c < parsers.size(); c++) {
+                if (c > 0)
+                    sb.append(',');
+                // null is the default, empty, null string
+                if (null != values[r][c])
+                    sb.append(parsers.get(c).format(values[r][c]));
+            }
+            lines[r] = sb.toString();
+        }
+        return lines;
+    }
+
+    // The fields as DelimParser hands them to the column parsers
+    public static String[] fields(String line) {
+        CsvParserSettings settings = new CsvParserSettings();
+        settings.getFormat().setLineSeparator("\n");
+        settings.getFormat().setDelimiter(',');
+        settings.getFormat().setQuote('"');
+        settings.getFormat().setQuoteEscape('\\');
+        return new CsvParser(settings).parseLine(line);
+    }
+
+    // Only what DelimParser.format() uses - isNull() and getObject() - is
+    // implemented.  The proxy adds a small constant cost per column.
+    public static Row row(final Object[] values) {
+        return (Row) Proxy.newProxyInstance(Row.class.getClassLoader(),
+                new Class<?>[]{Row.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isNull":
+                            return null == values[(Integer) args[0]];
+                        case "getObject":
+                            return values[(Integer) args[0]];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.SimulatedPreparedStatement;
+import com.datastax.loader.parser.BenchmarkRows.Column;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// From a line to a BoundStatement: DelimParser.parse() and then
+// PreparedStatement.bind(), as CqlDelimLoadTask does by default, against
+// the RowBinder of -specializedBind
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BindBenchmark {
+    // a power of two, so the index can wrap with a mask
+    private static final int NUM_ROWS = 1024;
+
+    @Param({BenchmarkRows.NARROW, BenchmarkRows.WIDE})
+    public String shape;
+
+    @Param({"false", "true"})
+    public boolean nullsUnset;
+
+    private DelimParser parser;
+    private PreparedStatement statement;
+    private RowBinder binder;
+    private String[] lines;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        List<Column> columns = BenchmarkRows.columns(shape);
+        List<String> names = new ArrayList<>();
+        List<DataType> types = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            names.add("c" + i);
+            types.add(columns.get(i).dataType());
+        }
+        ColumnDefinitions variables = SimulatedPreparedStatement.definitions("ks", "t", names, types);
+        ColumnDefinitions none = SimulatedPreparedStatement.definitions("ks", "t",
+                Collections.<String>emptyList(), Collections.<DataType>emptyList());
+        statement = new SimulatedPreparedStatement("INSERT", "ks", variables, none, new int[]{0});
+        parser = BenchmarkRows.delimParser(columns, true);
+        binder = parser.binder(statement, nullsUnset);
+
+        Object[][] values = BenchmarkRows.values(columns, NUM_ROWS, 42);
+        // every other row has a null, so both branches of the binder run
+        for (int i = 0; i < NUM_ROWS; i += 2)
+            values[i][1 + i % (columns.size() - 1)] = null;
+        lines = BenchmarkRows.lines(columns, values);
+        for (String line : lines) {
+            if ((null == generic(line)) || (null == binder.bind(line)))
+                throw new IllegalStateException("Could not bind " + line);
+        }
+    }
+
+    private BoundStatement generic(String line) {
+        List<Object> elements = parser.parse(line);
+        if (null == elements)
+            return null;
+        BoundStatement bind = statement.bind(elements.toArray());
+        if (nullsUnset) {
+            for (int i = 0; i < elements.size(); i++)
+                if (null == elements.get(i))
+                    bind.unset(i);
+        }
+        return bind;
+    }
+
+    @Benchmark
+    public BoundStatement parseAndBind() {
+        return generic(lines[next++ & (NUM_ROWS - 1)]);
+    }
+
+    @Benchmark
+    public BoundStatement specializedBind() {
+        return binder.bind(lines[next++ & (NUM_ROWS - 1)]);
+    }
+}
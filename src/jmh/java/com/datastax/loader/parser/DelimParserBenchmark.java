@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import com.datastax.driver.core.Row;
+import com.datastax.loader.parser.BenchmarkRows.Column;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Whole rows: splitting and parsing a line for the loader, and formatting
+// a Row for the unloader.  The narrow lines have no quotes, so split()
+// takes the LineTokenizer; the wide ones quote their collections and go
+// to the CsvParser either way.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DelimParserBenchmark {
+    // a power of two, so the index can wrap with a mask
+    private static final int NUM_ROWS = 1024;
+
+    @Param({BenchmarkRows.NARROW, BenchmarkRows.WIDE})
+    public String shape;
+
+    private DelimParser loadParser;
+    private DelimParser unloadParser;
+    private String[] lines;
+    private Row[] rows;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        List<Column> columns = BenchmarkRows.columns(shape);
+        loadParser = BenchmarkRows.delimParser(columns, true);
+        unloadParser = BenchmarkRows.delimParser(columns, false);
+        Object[][] values = BenchmarkRows.values(columns, NUM_ROWS, 42);
+        lines = BenchmarkRows.lines(columns, values);
+        rows = new Row[NUM_ROWS];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            rows[i] = BenchmarkRows.row(values[i]);
+            if ((null == loadParser.parseWithUnivocity(lines[i])) || (null == loadParser.parse(lines[i])))
+                throw new IllegalStateException("Could not parse " + lines[i]);
+        }
+    }
+
+    @Benchmark
+    public String[] split() {
+        return loadParser.split(lines[next++ & (NUM_ROWS - 1)]);
+    }
+
+    @Benchmark
+    public String[] splitWithUnivocity() {
+        return loadParser.splitWithUnivocity(lines[next++ & (NUM_ROWS - 1)]);
+    }
+
+    @Benchmark
+    public List<Object> parse() {
+        return loadParser.parse(lines[next++ & (NUM_ROWS - 1)]);
+    }
+
+    @Benchmark
+    public List<Object> parseWithUnivocity() {
+        return loadParser.parseWithUnivocity(lines[next++ & (NUM_ROWS - 1)]);
+    }
+
+    @Benchmark
+    public String format() {
+        return unloadParser.format(rows[next++ & (NUM_ROWS - 1)]);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.text.ParseException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// A quoted text column (as the unloader writes it) with few or many
+// distinct values, through StringParser with and without a dictionary.
+// Run with -prof gc for the allocation per value.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DictionaryBenchmark {
+    // a power of two, so the index can wrap with a mask
+    private static final int NUM_VALUES = 1 << 16;
+
+    // distinct values in the column
+    @Param({"100", "1000000"})
+    public int cardinality;
+
+    private Parser plain;
+    private Parser dictionary;
+    private String[] fields;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        plain = new StringParser();
+        dictionary = new DictionaryParser(new StringParser(), 1024);
+        Random random = new Random(42);
+        fields = new String[NUM_VALUES];
+        for (int i = 0; i < NUM_VALUES; i++)
+            fields[i] = "\"device-type-" + random.nextInt(cardinality) + "\"";
+    }
+
+    @Benchmark
+    public Object parse() throws ParseException {
+        return plain.parse(fields[next++ & (NUM_VALUES - 1)]);
+    }
+
+    @Benchmark
+    public Object parseWithDictionary() throws ParseException {
+        return dictionary.parse(fields[next++ & (NUM_VALUES - 1)]);
+    }
+}
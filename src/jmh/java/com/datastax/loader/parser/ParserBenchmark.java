@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import com.datastax.loader.parser.BenchmarkRows.Column;
+import org.openjdk.jmh.annotations.*;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One Parser at a time: parse() of a field as the loader sees it, and
+// format() of a value as the unloader gets it from the driver
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+    // a power of two, so the index can wrap with a mask
+    private static final int NUM_VALUES = 1024;
+
+    @Param({"INT", "BIGINT", "DOUBLE", "TEXT", "TIMESTAMP", "UUID", "DECIMAL",
+            "BLOB", "INET", "LIST", "SET", "MAP"})
+    public String column;
+
+    private Parser loadParser;
+    private Parser unloadParser;
+    private String[] fields;
+    private Object[] values;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws ParseException {
+        Column c = Column.valueOf(column);
+        List<Column> columns = Collections.singletonList(c);
+        loadParser = c.parser(true);
+        unloadParser = c.parser(false);
+        Object[][] rows = BenchmarkRows.values(columns, NUM_VALUES, 42);
+        String[] lines = BenchmarkRows.lines(columns, rows);
+        fields = new String[NUM_VALUES];
+        values = new Object[NUM_VALUES];
+        for (int i = 0; i < NUM_VALUES; i++) {
+            fields[i] = BenchmarkRows.fields(lines[i])[0];
+            values[i] = rows[i][0];
+            if (null == loadParser.parse(fields[i]))
+                throw new IllegalStateException("Could not parse " + fields[i]);
+        }
+    }
+
+    @Benchmark
+    public Object parse() throws ParseException {
+        return loadParser.parse(fields[next++ & (NUM_VALUES - 1)]);
+    }
+
+    @Benchmark
+    public String format() {
+        return unloadParser.format(values[next++ & (NUM_VALUES - 1)]);
+    }
+}
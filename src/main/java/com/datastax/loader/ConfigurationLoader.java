@@ -2,8 +2,10 @@ package com.datastax.loader;
 
 import com.datastax.driver.core.*;
 import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
 import com.datastax.driver.core.policies.TokenAwarePolicy;
 import com.datastax.loader.parser.BooleanParser;
+import com.datastax.loader.util.LoaderMetrics;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -44,6 +46,11 @@ abstract class ConfigurationLoader {
     protected Character quote = null;
     protected Character escape = null;
     protected Integer maxCharsPerColumn = null;
+    protected LoaderMetrics metrics = new LoaderMetrics();
+    protected String metricsDir = null;
+    protected long metricsPeriod = 10;
+    // false when the session is the caller's (library use) - it is left open
+    protected boolean ownsSession = true;
 
     protected boolean processConfigFile(String fname, Map<String, String> amap)
             throws IOException {
@@ -84,7 +91,9 @@ abstract class ConfigurationLoader {
                 "  -decimalDelim <decimalDelim>   Decimal delimiter [.] Other option is ','\n" +
                 "  -boolStyle <boolStyleString>   Style for booleans [TRUE_FALSE]\n" +
                 "  -maxCharsPerColumn <int>       Buffer size for parsing columns [4096]\n" +
-                "  -numThreads <numThreads>       Number of concurrent threads to unload [5]\n";
+                "  -numThreads <numThreads>       Number of concurrent threads to unload [5]\n" +
+                "  -metricsDir <dir>              Directory to write metrics CSV files to [none]\n" +
+                "  -metricsPeriod <# seconds>     How often to write the metrics CSV files [10]\n";
     }
 
     protected boolean validateArgs() {
@@ -117,9 +126,17 @@ abstract class ConfigurationLoader {
             System.err.println("If you supply the ssl-keystore-path, you must supply the ssl-keystore-pwd");
             return false;
         }
+        if ((null != metricsDir) && !new File(metricsDir).isDirectory()) {
+            System.err.println("-metricsDir must be a directory");
+            return false;
+        }
+        if (0 >= metricsPeriod) {
+            System.err.println("Metrics period must be positive");
+            return false;
+        }
         if (checkFile(this.truststorePath, "truststore file must be a file")) return false;
         if (checkFile(keystorePath, "keystore file must be a file")) return false;
-        if (filename.equalsIgnoreCase("stdout")) {
+        if ((null != filename) && filename.equalsIgnoreCase("stdout")) {
             numThreads = 1;
         }
 
@@ -150,12 +167,26 @@ abstract class ConfigurationLoader {
             return false;
         }
 
+        if (!parseArgsFromMap(amap))
+            return false;
+
+        return validateArgs();
+    }
+
+    // Library use: the same options as on the command line, minus -host,
+    // -f and -schema, which come from the builder
+    protected boolean parseOptions(String inSchema, String inFilename, Map<String, String> options) {
+        Map<String, String> amap = new HashMap<>(options);
+        amap.put("-schema", inSchema);
+        amap.put("-f", inFilename);
+        if (!parseArgsFromMap(amap))
+            return false;
         return validateArgs();
     }
 
     protected boolean parseArgsFromMap(Map<String, String> amap) {
         filename = amap.remove("-f");
-        if (null == filename) { // filename is required
+        if ((null == filename) && requiresFilename()) {
             System.err.println("Must provide a filename/directory");
             return false;
         }
@@ -178,6 +209,8 @@ abstract class ConfigurationLoader {
         if (null != (tkey = amap.remove("-nullString"))) nullString = tkey;
         if (null != (tkey = amap.remove("-delim"))) delimiter = tkey;
         if (null != (tkey = amap.remove("-maxCharsPerColumn"))) maxCharsPerColumn = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-metricsDir"))) metricsDir = tkey;
+        if (null != (tkey = amap.remove("-metricsPeriod"))) metricsPeriod = Long.parseLong(tkey);
         if (null != (tkey = amap.remove("-quote"))) {
             if (tkey.length() != 1) {
                 System.err.println("Bad quote parameter, must be single character.");
@@ -235,16 +268,23 @@ abstract class ConfigurationLoader {
     private Cluster getCluster(int numConnections)
             throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException,
             CertificateException, UnrecoverableKeyException {
+        return getCluster(host, port, numConnections);
+    }
+
+    // Same credentials and SSL options as the -host cluster
+    protected Cluster getCluster(String inHost, int inPort, int numConnections)
+            throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException,
+            CertificateException, UnrecoverableKeyException {
         // Connect to Cassandra
         PoolingOptions pOpts = new PoolingOptions();
         pOpts.setMaxConnectionsPerHost(HostDistance.LOCAL, numConnections);
         pOpts.setCoreConnectionsPerHost(HostDistance.LOCAL, numConnections);
         Cluster.Builder clusterBuilder = Cluster.builder()
-                .addContactPoint(host)
-                .withPort(port)
+                .addContactPoint(inHost)
+                .withPort(inPort)
                 //.withCompression(ProtocolOptions.Compression.LZ4)
                 .withPoolingOptions(pOpts)
-                .withLoadBalancingPolicy(new TokenAwarePolicy(DCAwareRoundRobinPolicy.builder().build()));
+                .withLoadBalancingPolicy(getLoadBalancingPolicy());
 
         if (null != username)
             clusterBuilder = clusterBuilder.withCredentials(username, password);
@@ -269,6 +309,9 @@ abstract class ConfigurationLoader {
             return false;
         }
 
+        if (null != cluster.getMetrics())
+            metrics.registerAll("driver", cluster.getMetrics().getRegistry());
+        metrics.start(metricsDir, metricsPeriod);
         return true;
     }
 
@@ -276,12 +319,24 @@ abstract class ConfigurationLoader {
         return 8;
     }
 
+    // Tools without an input or output file have no -f
+    protected boolean requiresFilename() {
+        return true;
+    }
+
+    protected LoadBalancingPolicy getLoadBalancingPolicy() {
+        return new TokenAwarePolicy(DCAwareRoundRobinPolicy.builder().build());
+    }
+
     protected Session getSession(Cluster cluster) throws FileNotFoundException {
         return cluster.connect();
     }
 
 
     protected void cleanup() {
+        metrics.stop();
+        if (!ownsSession)
+            return;
         if (null != session)
             session.close();
         if (null != cluster)
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.loader.util.LoaderMetrics;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+// Loads many inputs, one after the other, on one thread.  The next input
+// is read as soon as the previous one has been sent - its rows are still
+// in flight in the shared window - so small files do not each wait for
+// their last rows to be acknowledged.  Every input is still finished on
+// its own, and moved to the success or failure directory, once its rows
+// have completed.  At most maxPending inputs wait for their rows at once.
+class CqlDelimCoalesceTask implements Callable<Long> {
+    private final Queue<FileSplit> splits;
+    private final Function<FileSplit, CqlDelimLoadTask> newTask;
+    private final int maxPending;
+    private final LoaderControl control;
+    private final LoaderMetrics metrics;
+
+    public CqlDelimCoalesceTask(Queue<FileSplit> inSplits,
+                                Function<FileSplit, CqlDelimLoadTask> inNewTask,
+                                int inMaxPending, LoaderControl inControl,
+                                LoaderMetrics inMetrics) {
+        splits = inSplits;
+        newTask = inNewTask;
+        maxPending = inMaxPending;
+        control = inControl;
+        metrics = inMetrics;
+    }
+
+    public Long call() throws IOException, InterruptedException {
+        Deque<CqlDelimLoadTask> pending = new ArrayDeque<>();
+        long total = 0;
+        FileSplit split;
+        try {
+            // Inputs that have not started yet are left untouched
+            while (!control.isDraining() && (null != (split = splits.poll()))) {
+                metrics.getInputsQueued().dec();
+                CqlDelimLoadTask task = newTask.apply(split);
+                if (task.start())
+                    pending.addLast(task);
+                else
+                    total += task.getResult();
+                // finish in order, so the inputs are moved in the order read
+                while (!pending.isEmpty()
+                        && ((maxPending <= pending.size()) || pending.peekFirst().isDone()))
+                    total += pending.pollFirst().finish();
+            }
+            while (!pending.isEmpty())
+                total += pending.pollFirst().finish();
+            return total;
+        } catch (Throwable t) {
+            // the inputs already sent are still finished (and moved, and
+            // their files closed) before the first error goes up
+            while (!pending.isEmpty()) {
+                try {
+                    pending.pollFirst().finish();
+                } catch (Throwable t2) {
+                    t.addSuppressed(t2);
+                }
+            }
+            throw t;
+        }
+    }
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.QueryValidationException;
+import com.datastax.loader.futures.ActionFutureSet;
+import com.datastax.loader.futures.FutureManager;
+import com.datastax.loader.futures.InFlightBudget;
+import com.datastax.loader.futures.PrintingFutureAction;
+import com.datastax.loader.util.AsyncLineWriter;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Copies the rows of one table into another, in the same or in another
+// cluster, without turning them into text: the source is scanned by token
+// subranges and the raw bytes of every column are bound into the prepared
+// INSERT on the target.  The next page of a scan is fetched while the
+// current one is written, and the reads and the writes have their own rate
+// limits.  A subrange with a failed INSERT, and the ones a drain did not
+// get to, go to a checkpoint that -ranges takes to copy just those again.
+public class CqlDelimCopy extends ConfigurationLoader {
+    private static final String LOG = ".LOG";
+    private static final String CHECKPOINT = ".CHECKPOINT";
+    private static final String RANGE = "range: ";
+    // With a log file, only the first INSERT errors also go to the console
+    private static final int MAX_CONSOLE_ERRORS = 10;
+    private String targetSchema = null;
+    private String targetHost = null;
+    private int targetPort = -1;
+    private int numRanges = -1;
+    private int pageSize = 5000;
+    private double rate = Double.MAX_VALUE;
+    private double targetRate = Double.MAX_VALUE;
+    private long progressRate = 100000;
+    private int numFutures = 1000;
+    private int queryTimeout = 2;
+    private long maxInsertErrors = 10;
+    private int numRetries = 1;
+    private Cluster targetCluster = null;
+    private Session targetSession = null;
+    private boolean unsetNulls = false;
+    private RateLimiter rateLimiter = null;
+    private RateLimiter targetRateLimiter = null;
+    private InFlightBudget inFlightBudget = null;
+    private LoaderControl control = null;
+    private String badDir = null;
+    private String rangesFile = null;
+    private AsyncLineWriter logPrinter = null;
+    // subranges, as "<start> <end>", that have to be copied again
+    private final Set<String> failedRanges = new ConcurrentSkipListSet<>();
+    private final AtomicLong insertErrors = new AtomicLong(0);
+
+    public static void main(String[] args)
+            throws IOException, ParseException, InterruptedException, ExecutionException,
+            KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException,
+            CertificateException, KeyManagementException {
+        CqlDelimCopy cdc = new CqlDelimCopy();
+        boolean success = cdc.run(args);
+        if (success) {
+            System.exit(0);
+        } else {
+            System.exit(-1);
+        }
+    }
+
+    protected String usage() {
+        StringBuilder usage = new StringBuilder("version: ").append(version).append("\n");
+        usage.append("Usage: -host <ipaddress> -schema <schema> [OPTIONS]\n");
+        usage.append("OPTIONS:\n");
+        usage.append("  -configFile <filename>         File with configuration options\n");
+        usage.append("  -port <portNumber>             CQL Port Number [9042]\n");
+        usage.append("  -user <username>               Cassandra username (both clusters) [none]\n");
+        usage.append("  -pw <password>                 Password for user [none]\n");
+        usage.append("  -ssl-truststore-path <path>    Path to SSL truststore (both clusters) [none]\n");
+        usage.append("  -ssl-truststore-pwd <pwd>       Password for SSL truststore [none]\n");
+        usage.append("  -ssl-keystore-path <path>      Path to SSL keystore [none]\n");
+        usage.append("  -ssl-keystore-pwd <pwd>         Password for SSL keystore [none]\n");
+        usage.append("  -consistencyLevel <CL>         Consistency level for reading and writing [LOCAL_ONE]\n");
+        usage.append("  -numThreads <numThreads>       Number of token ranges to copy at once [5]\n");
+        usage.append("  -metricsDir <dir>              Directory to write metrics CSV files to [none]\n");
+        usage.append("  -metricsPeriod <# seconds>     How often to write the metrics CSV files [10]\n");
+        usage.append("  -targetSchema <schema>         Table and columns to copy to, in the order of -schema [-schema]\n");
+        usage.append("  -targetHost <ipaddress>        Cluster to copy to [-host]\n");
+        usage.append("  -targetPort <portNumber>       CQL Port Number of -targetHost [-port]\n");
+        usage.append("  -numRanges <numRanges>         Number of token subranges to scan [4 * numThreads]\n");
+        usage.append("  -pageSize <rows>               Rows per page read from the source [5000]\n");
+        usage.append("  -rate <rows-per-second>        Maximum read rate [unlimited]\n");
+        usage.append("  -targetRate <rows-per-second>  Maximum write rate [unlimited]\n");
+        usage.append("  -numFutures <numFutures>       Number of INSERTs to keep in flight [1000]\n");
+        usage.append("  -queryTimeout <# seconds>      Query timeout (in seconds) [2]\n");
+        usage.append("  -numRetries <numRetries>       Number of times to retry the INSERT [1]\n");
+        usage.append("  -maxInsertErrors <# errors>    Maximum INSERT errors to endure per thread [10]\n");
+        usage.append("  -progressRate <num txns>       How often to report the write rate [100000]\n");
+        usage.append("  -badDir <badDirectory>         Directory for the error log and the checkpoint of the subranges to copy again [none]\n");
+        usage.append("  -ranges <filename>             Copy only the subranges in this file, e.g. an earlier copy's checkpoint [whole ring]\n");
+        usage.append("\n\nExamples:\n");
+        usage.append("java -cp <jar file> com.datastax.loader.CqlDelimCopy -host localhost -schema \"ks.events(id, ts, body)\" -targetSchema \"ks2.events_by_id(id, ts, body)\"\n");
+        usage.append("java -cp <jar file> com.datastax.loader.CqlDelimCopy -host 1.2.3.4 -targetHost 5.6.7.8 -schema \"ks.events(id, ts, body)\" -numThreads 16 -targetRate 20000\n");
+        return usage.toString();
+    }
+
+    @Override
+    protected boolean requiresFilename() {
+        return false;
+    }
+
+    @Override
+    protected boolean validateArgs() {
+        if (!super.validateArgs())
+            return false;
+        if (null == targetSchema)
+            targetSchema = cqlSchema;
+        if (-1 == targetPort)
+            targetPort = port;
+        if (-1 == numRanges)
+            numRanges = 4 * numThreads;
+        if ((0 >= numRanges) || (0 >= pageSize) || (0 >= numFutures)) {
+            System.err.println("-numRanges, -pageSize and -numFutures must be positive");
+            return false;
+        }
+        if ((0 >= rate) || (0 >= targetRate)) {
+            System.err.println("Rate must be positive");
+            return false;
+        }
+        if (0 >= queryTimeout) {
+            System.err.println("Query timeout must be positive");
+            return false;
+        }
+        if ((0 > maxInsertErrors) || (0 > numRetries) || (0 > progressRate)) {
+            System.err.println("-maxInsertErrors, -numRetries and -progressRate must be non-negative");
+            return false;
+        }
+        if ((null == targetHost) && targetSchema.equals(cqlSchema)) {
+            System.err.println("The target is the source - set -targetSchema or -targetHost");
+            return false;
+        }
+        if ((null != badDir) && !Files.isDirectory(Paths.get(badDir))) {
+            System.err.println("Bad directory (" + badDir + ") must be a directory");
+            return false;
+        }
+        if ((null != rangesFile) && !Files.isReadable(Paths.get(rangesFile))) {
+            System.err.println("Cannot read -ranges file " + rangesFile);
+            return false;
+        }
+
+        return true;
+    }
+
+    protected boolean parseArgsFromMap(Map<String, String> amap) {
+        if (!super.parseArgsFromMap(amap))
+            return false;
+
+        String tkey;
+        if (null != (tkey = amap.remove("-targetSchema"))) targetSchema = tkey;
+        if (null != (tkey = amap.remove("-targetHost"))) targetHost = tkey;
+        if (null != (tkey = amap.remove("-targetPort"))) targetPort = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-numRanges"))) numRanges = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-pageSize"))) pageSize = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-rate"))) rate = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-targetRate"))) targetRate = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-progressRate"))) progressRate = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-numFutures"))) numFutures = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-queryTimeout"))) queryTimeout = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-maxInsertErrors"))) maxInsertErrors = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-numRetries"))) numRetries = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-badDir"))) badDir = tkey;
+        if (null != (tkey = amap.remove("-ranges"))) rangesFile = tkey;
+
+        if (-1 == maxInsertErrors) {
+            maxInsertErrors = Long.MAX_VALUE;
+        }
+
+        if (!amap.isEmpty()) {
+            for (String k : amap.keySet()) {
+                System.err.println("Unrecognized option: " + k);
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    protected int getNumConnections() {
+        return 4;
+    }
+
+    @Override
+    protected void cleanup() {
+        super.cleanup();
+        if (null != control)
+            control.unregister();
+        if (null != logPrinter) {
+            try {
+                logPrinter.close();
+            } catch (IOException e) {
+                System.err.println("Error writing " + logPrinter.getName() + ": " + e.getMessage());
+            }
+        }
+        if (null != rateLimiter)
+            rateLimiter.close();
+        if (null != targetRateLimiter) {
+            targetRateLimiter.close();
+            if (0 < progressRate)
+                targetRateLimiter.report(null, null);
+        }
+        // with one cluster, the target is the source session
+        if (null != targetCluster) {
+            if (null != targetSession)
+                targetSession.close();
+            targetCluster.close();
+        }
+    }
+
+    // The writes go through their own rate limiter and in-flight window,
+    // to the -targetHost cluster if there is one
+    private void connectTarget()
+            throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException,
+            CertificateException, UnrecoverableKeyException {
+        Session tsession = session;
+        if (null != targetHost) {
+            targetCluster = getCluster(targetHost, targetPort, 8);
+            tsession = targetCluster.connect();
+        }
+        unsetNulls = 0 <= tsession.getCluster().getConfiguration().getProtocolOptions()
+                .getProtocolVersion().compareTo(ProtocolVersion.V4);
+        rateLimiter = new RateLimiter(rate, 0, null, null);
+        targetRateLimiter = new RateLimiter(targetRate, progressRate, null, null);
+        targetSession = new RateLimitedSession(tsession, targetRateLimiter);
+        inFlightBudget = new InFlightBudget(numFutures);
+        metrics.registerGauge("inFlight", inFlightBudget::getInFlight);
+        control = new LoaderControl(targetRateLimiter, inFlightBudget);
+        control.register("CqlDelimCopy");
+    }
+
+    public boolean run(String[] args)
+            throws IOException, InterruptedException, ExecutionException,
+            KeyStoreException, NoSuchAlgorithmException, KeyManagementException,
+            CertificateException, UnrecoverableKeyException {
+        if (!parseArgs(args)) {
+            System.err.println("Bad arguments");
+            System.err.println(usage());
+            return false;
+        }
+
+        // Setup
+        if (!setup())
+            return false;
+        connectTarget();
+
+        // The bytes are copied as they are, so the types must be the same
+        CqlDelimParser source;
+        CqlDelimParser target;
+        try {
+            source = new CqlDelimParser(cqlSchema, delimiter, nullString,
+                    dateFormatString, boolStyle, locale, null, session, false);
+            target = new CqlDelimParser(targetSchema, delimiter, nullString,
+                    dateFormatString, boolStyle, locale, null, targetSession, true);
+        } catch (ParseException pe) {
+            System.err.println("Error parsing schema: " + pe.getMessage());
+            cleanup();
+            return false;
+        }
+        if (!source.getColumnTypes().equals(target.getColumnTypes())) {
+            System.err.println("The columns of -schema and -targetSchema must have the same types: "
+                    + source.getColumnTypes() + " vs " + target.getColumnTypes());
+            cleanup();
+            return false;
+        }
+
+        String where = " WHERE Token(" + source.getPartitionKey() + ") > ?";
+        PreparedStatement select = prepare(session, source.generateSelect() + where
+                + " AND Token(" + source.getPartitionKey() + ") <= ?");
+        PreparedStatement openSelect = prepare(session, source.generateSelect() + where);
+        PreparedStatement insert = prepare(targetSession, target.generateInsert());
+        if ((null == select) || (null == openSelect) || (null == insert)) {
+            cleanup();
+            return false;
+        }
+        insert.setRetryPolicy(new LoaderRetryPolicy(numRetries));
+
+        // The checkpoint of an earlier run may be the -ranges file, so it
+        // is read before the files of this run replace it
+        List<TokenRange> planned;
+        try {
+            planned = (null == rangesFile) ? planRanges(cluster.getMetadata())
+                    : readRanges(cluster.getMetadata(), rangesFile);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading -ranges file " + rangesFile + ": " + e.getMessage());
+            cleanup();
+            return false;
+        }
+        String name = target.getKeyspace() + "." + target.getTable();
+        if (null != badDir) {
+            Files.deleteIfExists(Paths.get(badDir, name + LOG));
+            Files.deleteIfExists(Paths.get(badDir, name + CHECKPOINT));
+            logPrinter = new AsyncLineWriter(badDir + "/" + name + LOG);
+        }
+
+        // Launch Threads - each takes the next subrange when it is done
+        Queue<TokenRange> ranges = new ConcurrentLinkedQueue<>(planned);
+        System.err.println("*** Copying " + cqlSchema + " to " + targetSchema
+                + " in " + ranges.size() + " token ranges");
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int mype = 0; mype < numThreads; mype++)
+            results.add(executor.submit(new ThreadExecute(ranges, select, openSelect, insert)));
+        executor.shutdown();
+        long total = 0;
+        boolean success = true;
+        for (Future<Long> res : results) {
+            long n = res.get();
+            if (0 > n)
+                success = false;
+            else
+                total += n;
+        }
+        System.err.println("Total rows copied: " + total);
+        if (0 < insertErrors.get()) {
+            System.err.println("*** " + insertErrors.get() + " INSERTs failed, in "
+                    + failedRanges.size() + " token ranges");
+            success = false;
+        }
+        if (!ranges.isEmpty() || !failedRanges.isEmpty())
+            checkpoint(name, ranges);
+
+        // Cleanup
+        cleanup();
+
+        return success;
+    }
+
+    private static String key(TokenRange range) {
+        return range.getStart() + " " + range.getEnd();
+    }
+
+    // The subranges of a checkpoint, one "range: <start> <end>" line each;
+    // other lines are ignored
+    private static List<TokenRange> readRanges(Metadata metadata, String fname) throws IOException {
+        List<TokenRange> ranges = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fname))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (!line.startsWith(RANGE))
+                    continue;
+                String[] tokens = line.substring(RANGE.length()).trim().split("\\s+");
+                if (2 != tokens.length)
+                    throw new IllegalArgumentException("Bad range line: " + line);
+                ranges.add(metadata.newTokenRange(metadata.newToken(tokens[0]),
+                        metadata.newToken(tokens[1])));
+            }
+        }
+        return ranges;
+    }
+
+    // The subranges with failed INSERTs (copied again as a whole) and
+    // the ones a drain did not get to
+    private void checkpoint(String name, Queue<TokenRange> left) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("schema: ").append(cqlSchema).append("\n");
+        sb.append("targetSchema: ").append(targetSchema).append("\n");
+        sb.append("rangesFailed: ").append(failedRanges.size()).append("\n");
+        sb.append("rangesLeft: ").append(left.size()).append("\n");
+        Set<String> keys = new TreeSet<>(failedRanges);
+        for (TokenRange range : left)
+            keys.add(key(range));
+        for (String k : keys)
+            sb.append(RANGE).append(k).append("\n");
+        if (null != badDir) {
+            String fname = badDir + "/" + name + CHECKPOINT;
+            try (PrintStream ps = new PrintStream(new FileOutputStream(fname))) {
+                ps.print(sb);
+            }
+            System.err.println("*** NOT COPIED: " + keys.size() + " token ranges, checkpoint in "
+                    + fname + " - copy them with -ranges " + fname);
+        } else {
+            System.err.println("*** NOT COPIED: " + keys.size() + " token ranges\n" + sb);
+        }
+    }
+
+    private PreparedStatement prepare(Session tsession, String query) {
+        PreparedStatement statement;
+        try {
+            statement = tsession.prepare(query);
+        } catch (QueryValidationException iqe) {
+            System.err.println("Error creating statement: " + iqe.getMessage());
+            System.err.println("CQL Query: " + query);
+            return null;
+        }
+        statement.setConsistencyLevel(consistencyLevel);
+        return statement;
+    }
+
+    // The ranges of the ring, each split evenly so that there are at least
+    // -numRanges, and the range that wraps around cut in two
+    private List<TokenRange> planRanges(Metadata metadata) {
+        Set<TokenRange> ring = metadata.getTokenRanges();
+        int splits = (numRanges + ring.size() - 1) / ring.size();
+        List<TokenRange> ranges = new ArrayList<>();
+        for (TokenRange range : ring) {
+            for (TokenRange split : range.splitEvenly(splits))
+                ranges.addAll(split.unwrap());
+        }
+        return ranges;
+    }
+
+    class ThreadExecute implements Callable<Long> {
+        private final Queue<TokenRange> ranges;
+        private final PreparedStatement select;
+        private final PreparedStatement openSelect;
+        private final PreparedStatement insert;
+        private final int prefetch = pageSize / 2;
+
+        public ThreadExecute(Queue<TokenRange> inRanges, PreparedStatement inSelect,
+                             PreparedStatement inOpenSelect, PreparedStatement inInsert) {
+            ranges = inRanges;
+            select = inSelect;
+            openSelect = inOpenSelect;
+            insert = inInsert;
+        }
+
+        public Long call() throws InterruptedException {
+            FutureManager fm = new ActionFutureSet(targetSession, inFlightBudget,
+                    null, null, null, queryTimeout, maxInsertErrors,
+                    metrics, new CopyFutureAction(logPrinter));
+            TokenRange range;
+            // Ranges that have not started yet are left for a later run
+            while (!control.isDraining() && (null != (range = ranges.poll()))) {
+                boolean copied;
+                try {
+                    copied = copy(range, fm);
+                } catch (RuntimeException e) {
+                    System.err.println("Error copying token range " + range + ": " + e.getMessage());
+                    copied = false;
+                }
+                if (!copied) {
+                    // the rest of it has to be copied again, too
+                    failedRanges.add(key(range));
+                    System.err.println("Stopped copying token range " + range);
+                    fm.cleanup();
+                    return -1L;
+                }
+            }
+            if (!fm.cleanup())
+                return -1L;
+            return fm.getNumInserted();
+        }
+
+        private boolean copy(TokenRange range, FutureManager fm) throws InterruptedException {
+            // after unwrap() only a range that ends at the minimum token
+            // ends below its start
+            boolean openEnded = 0 >= range.getEnd().compareTo(range.getStart());
+            BoundStatement bound = openEnded ? openSelect.bind() : select.bind();
+            bound.setToken(0, range.getStart());
+            if (!openEnded)
+                bound.setToken(1, range.getEnd());
+            bound.setFetchSize(pageSize);
+            ResultSet rs = session.execute(bound);
+            metrics.getUnloadPages().inc();
+            int numColumns = rs.getColumnDefinitions().size();
+            String rangeKey = key(range);
+            for (Row row : rs) {
+                control.awaitResumed();
+                // the next page is on its way while this one is written
+                if ((prefetch == rs.getAvailableWithoutFetching()) && !rs.isFullyFetched()) {
+                    rs.fetchMoreResults();
+                    metrics.getUnloadPages().inc();
+                }
+                rateLimiter.acquire();
+                metrics.getUnloadRows().mark();
+                BoundStatement write = insert.bind();
+                for (int i = 0; i < numColumns; i++) {
+                    ByteBuffer bytes = row.getBytesUnsafe(i);
+                    // left unbound, a null is unset instead of a tombstone
+                    if ((null != bytes) || !unsetNulls)
+                        write.setBytesUnsafe(i, bytes);
+                }
+                if (!fm.add(write, rangeKey))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    // Every failed INSERT marks its subrange for the checkpoint
+    private class CopyFutureAction extends PrintingFutureAction {
+        CopyFutureAction(AsyncLineWriter inLogPrinter) {
+            super(inLogPrinter, null);
+        }
+
+        @Override
+        public void onFailure(Throwable t, String line) {
+            super.onFailure(t, line);
+            failedRanges.add(line);
+            long numErrors = insertErrors.incrementAndGet();
+            if ((null == logPrinter) || (MAX_CONSOLE_ERRORS >= numErrors))
+                System.err.println("Error inserting into token range " + line + ": " + t.getMessage());
+        }
+
+        @Override
+        public void onTooManyFailures() {
+            super.onTooManyFailures();
+            System.err.println("Too many INSERT errors ... Stopping");
+        }
+    }
+}
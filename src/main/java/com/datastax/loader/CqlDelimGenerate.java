@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.driver.core.*;
+
+import java.io.*;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Writes synthetic delimited files for the columns in -schema, in the
+// format the unloader writes - so the loader reads them back as-is
+public class CqlDelimGenerate extends ConfigurationLoader {
+    private static final String STDOUT = "stdout";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private long numRows = -1;
+    private long partitions = -1;
+    private long rowsPerPartition = 1;
+    private int minValueSize = 8;
+    private int maxValueSize = 32;
+    private boolean exponentialSizes = false;
+    private int minCollectionSize = 0;
+    private int maxCollectionSize = 5;
+    private long seed = 0;
+
+    public static void main(String[] args)
+            throws IOException, ParseException, InterruptedException, ExecutionException,
+            KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException,
+            CertificateException, KeyManagementException {
+        CqlDelimGenerate cdg = new CqlDelimGenerate();
+        boolean success = cdg.run(args);
+        if (success) {
+            System.exit(0);
+        } else {
+            System.exit(-1);
+        }
+    }
+
+    protected String usage() {
+        StringBuilder usage = new StringBuilder("version: ").append(version).append("\n");
+        usage.append("Usage: -f <outputStem> -host <ipaddress> -schema <schema> -numRows <numRows> [OPTIONS]\n");
+        usage.append("OPTIONS:\n");
+        usage.append(commonUsage());
+
+        usage.append("  -partitions <numPartitions>    Number of distinct partition keys [numRows / rowsPerPartition]\n");
+        usage.append("  -rowsPerPartition <numRows>    Clustering rows per partition [1]\n");
+        usage.append("  -valueSize <min>[:<max>]       Length of text and blob values [8:32]\n");
+        usage.append("  -valueSizeDist <dist>          UNIFORM or EXPONENTIAL (mean halfway, cut at max) [UNIFORM]\n");
+        usage.append("  -collectionSize <min>[:<max>]  Number of list, set and map elements [0:5]\n");
+        usage.append("  -seed <seed>                   Random seed - the same seed gives the same rows [0]\n");
+        return usage.toString();
+    }
+
+    @Override
+    protected boolean validateArgs() {
+        if (!super.validateArgs())
+            return false;
+        if (0 >= numRows) {
+            System.err.println("Must provide a positive number of rows (-numRows)");
+            return false;
+        }
+        if (0 >= rowsPerPartition) {
+            System.err.println("Rows per partition must be positive");
+            return false;
+        }
+        if (-1 == partitions)
+            partitions = Math.max(1, numRows / rowsPerPartition);
+        if (0 >= partitions) {
+            System.err.println("Number of partitions must be positive");
+            return false;
+        }
+        if ((0 > minValueSize) || (minValueSize > maxValueSize)
+                || (0 > minCollectionSize) || (minCollectionSize > maxCollectionSize)) {
+            System.err.println("Sizes must be non-negative, and min must not be larger than max");
+            return false;
+        }
+
+        return true;
+    }
+
+    protected boolean parseArgsFromMap(Map<String, String> amap) {
+        if (!super.parseArgsFromMap(amap))
+            return false;
+
+        String tkey;
+        if (null != (tkey = amap.remove("-numRows"))) numRows = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-partitions"))) partitions = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-rowsPerPartition"))) rowsPerPartition = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-seed"))) seed = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-valueSize"))) {
+            int[] range = parseRange(tkey);
+            minValueSize = range[0];
+            maxValueSize = range[1];
+        }
+        if (null != (tkey = amap.remove("-collectionSize"))) {
+            int[] range = parseRange(tkey);
+            minCollectionSize = range[0];
+            maxCollectionSize = range[1];
+        }
+        if (null != (tkey = amap.remove("-valueSizeDist"))) {
+            if ("EXPONENTIAL".equalsIgnoreCase(tkey)) {
+                exponentialSizes = true;
+            } else if (!"UNIFORM".equalsIgnoreCase(tkey)) {
+                System.err.println("Bad value size distribution.  Options are: UNIFORM, EXPONENTIAL");
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // "n" or "min:max"
+    private static int[] parseRange(String s) {
+        int idx = s.indexOf(':');
+        if (-1 == idx) {
+            int n = Integer.parseInt(s.trim());
+            return new int[]{n, n};
+        }
+        return new int[]{Integer.parseInt(s.substring(0, idx).trim()),
+                Integer.parseInt(s.substring(idx + 1).trim())};
+    }
+
+    @Override
+    protected int getNumConnections() {
+        return 1;
+    }
+
+    public boolean run(String[] args)
+            throws IOException, InterruptedException, ExecutionException,
+            KeyStoreException, NoSuchAlgorithmException, KeyManagementException,
+            CertificateException, UnrecoverableKeyException {
+        if (!parseArgs(args)) {
+            System.err.println("Bad arguments");
+            System.err.println(usage());
+            return false;
+        }
+
+        // Setup - the cluster is only needed for the column types
+        if (!setup())
+            return false;
+
+        CqlDelimParser cdp;
+        try {
+            cdp = new CqlDelimParser(cqlSchema, delimiter, nullString,
+                    dateFormatString, boolStyle, locale, null, session, false,
+                    quote, escape, maxCharsPerColumn);
+        } catch (ParseException pe) {
+            System.err.println("Error parsing schema: " + pe.getMessage());
+            cleanup();
+            return false;
+        }
+        List<RowGenerator.Role> roles = roles(cdp);
+        cleanup();
+        if (null == roles)
+            return false;
+
+        // Launch Threads - each writes a contiguous range of rows
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int mype = 0; mype < numThreads; mype++) {
+            long begin = numRows / numThreads * mype + Math.min(mype, numRows % numThreads);
+            long end = begin + numRows / numThreads + ((mype < numRows % numThreads) ? 1 : 0);
+            PrintStream pstream;
+            if (filename.equalsIgnoreCase(STDOUT)) {
+                pstream = System.out;
+            } else {
+                pstream = new PrintStream(new BufferedOutputStream(
+                        new FileOutputStream(filename + "." + mype), BUFFER_SIZE));
+            }
+            RowGenerator generator = new RowGenerator(cdp.getColumnTypes(), roles,
+                    partitions, rowsPerPartition, minValueSize, maxValueSize,
+                    exponentialSizes, minCollectionSize, maxCollectionSize, seed);
+            Callable<Long> worker;
+            try {
+                worker = new ThreadExecute(cdp.duplicate(), generator, pstream, begin, end);
+            } catch (ParseException pe) {
+                System.err.println("Error parsing schema: " + pe.getMessage());
+                return false;
+            }
+            results.add(executor.submit(worker));
+        }
+        executor.shutdown();
+        long total = 0;
+        for (Future<Long> res : results)
+            total += res.get();
+        System.err.println("Total rows generated: " + total);
+
+        return true;
+    }
+
+    // Which columns are partition and clustering key columns
+    private List<RowGenerator.Role> roles(CqlDelimParser cdp) {
+        TableMetadata tm = cluster.getMetadata().getKeyspace(cdp.getKeyspace())
+                .getTable(cdp.getTable());
+        Set<String> partitionKey = new HashSet<>();
+        for (ColumnMetadata cm : tm.getPartitionKey())
+            partitionKey.add(cm.getName());
+        Set<String> clusteringColumns = new HashSet<>();
+        for (ColumnMetadata cm : tm.getClusteringColumns())
+            clusteringColumns.add(cm.getName());
+
+        List<RowGenerator.Role> roles = new ArrayList<>();
+        int numPartitionKey = 0;
+        int numClustering = 0;
+        for (String name : cdp.getColumnNames()) {
+            String column = tm.getColumn(name).getName();
+            if (partitionKey.contains(column)) {
+                roles.add(RowGenerator.Role.PARTITION);
+                numPartitionKey++;
+            } else if (clusteringColumns.contains(column)) {
+                roles.add(RowGenerator.Role.CLUSTERING);
+                numClustering++;
+            } else {
+                roles.add(RowGenerator.Role.REGULAR);
+            }
+        }
+        if (partitionKey.size() != numPartitionKey) {
+            System.err.println("The schema must include all partition key columns");
+            return null;
+        }
+        if ((1 < rowsPerPartition) && (0 == numClustering)) {
+            System.err.println("-rowsPerPartition needs a clustering column in the schema");
+            return null;
+        }
+        return roles;
+    }
+
+    class ThreadExecute implements Callable<Long> {
+        private final CqlDelimParser cdp;
+        private final RowGenerator generator;
+        private final PrintStream writer;
+        private final long begin;
+        private final long end;
+
+        public ThreadExecute(CqlDelimParser inCdp, RowGenerator inGenerator,
+                             PrintStream inWriter, long inBegin, long inEnd) {
+            super();
+            cdp = inCdp;
+            generator = inGenerator;
+            writer = inWriter;
+            begin = inBegin;
+            end = inEnd;
+        }
+
+        public Long call() {
+            for (long row = begin; row < end; row++)
+                writer.println(cdp.format(generator.generate(row)));
+            writer.flush();
+            if (System.out != writer)
+                writer.close();
+            return end - begin;
+        }
+    }
+}
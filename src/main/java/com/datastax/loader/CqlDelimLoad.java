@@ -16,9 +16,15 @@
 package com.datastax.loader;
 
 import com.datastax.driver.core.Cluster;
-import com.datastax.driver.core.Metrics;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ProtocolVersion;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.loader.futures.AdaptiveInFlightBudget;
+import com.datastax.loader.futures.HostThrottle;
+import com.datastax.loader.futures.InFlightBudget;
+import com.datastax.loader.futures.RetryQueue;
+import com.datastax.loader.util.IteratorReader;
 
 import java.io.*;
 import java.nio.file.FileSystems;
@@ -36,13 +42,29 @@ public class CqlDelimLoad extends ConfigurationLoader {
     public static final String STDIN = "stdin";
     public static final String STDERR = "stderr";
     private int numFutures = 1000;
-    private int inNumFutures = -1;
+    private int numFuturesPerHost = -1;
+    private boolean adaptiveFutures = false;
+    private int maxNumFutures = 10000;
+    private InFlightBudget inFlightBudget = null;
+    private int maxHostFutures = -1;
+    private double hostRate = -1;
+    private HostThrottle hostThrottle = null;
     private int queryTimeout = 2;
     private long maxInsertErrors = 10;
     private int numRetries = 1;
+    private int delayedRetries = 0;
+    private long retryDelay = 100;
+    private long maxRetryDelay = 10000;
+    private int maxRetryFutures = 100;
+    private int maxRetryBytes = 64 * 1024 * 1024;
+    private RetryQueue retryQueue = null;
     private double rate = 50000.0;
+    private double byteRate = -1;
+    private int maxInFlightBytes = -1;
+    private InFlightBudget inFlightBytes = null;
     private long progressRate = 100000;
     private RateLimiter rateLimiter = null;
+    private LoaderControl control = null;
     private String rateFile = null;
     private PrintStream rateStream = null;
     private long maxErrors = 10;
@@ -54,9 +76,19 @@ public class CqlDelimLoad extends ConfigurationLoader {
     private String failureDir = null;
 
     private String filePattern = null;
+    private long splitSize = 256L * 1024 * 1024;
+    private boolean watch = false;
+    private long stableMillis = 5000;
+    private String readyMarker = null;
+    private int coalesce = 0;
+    private List<String> fanOutSchemas = new ArrayList<>();
+    private List<InsertTarget> fanOut = Collections.emptyList();
+    private boolean specializedBind = false;
+    private int textDictionary = 1024;
 
     private int numThreads = Runtime.getRuntime().availableProcessors();
     private int batchSize = 1;
+    private int batchSizeKB = 0;
     private boolean nullsUnset = false;
 
     public static void main(String[] args)
@@ -85,22 +117,43 @@ public class CqlDelimLoad extends ConfigurationLoader {
         usage.append("  -maxErrors <maxErrors>         Maximum parse errors to endure [10]\n");
         usage.append("  -badDir <badDirectory>         Directory for where to place badly parsed rows. [none]\n");
         usage.append("  -numFutures <numFutures>       Number of CQL futures to keep in flight [1000]\n");
+        usage.append("  -numFuturesPerHost <num>       Number of CQL futures to keep in flight per host (overrides -numFutures) [none]\n");
+        usage.append("  -adaptiveFutures [false|true]  Adjust the futures in flight to the observed latency, starting at -numFutures [false]\n");
+        usage.append("  -maxNumFutures <numFutures>    Upper bound for -adaptiveFutures [10000]\n");
+        usage.append("  -maxHostFutures <numFutures>   Maximum futures in flight to any one host - lets slow hosts fall behind [none]\n");
+        usage.append("  -hostRate <rows-per-second>    Maximum insert rate to any one host [none]\n");
         usage.append("  -batchSize <batchSize>         Number of INSERTs to batch together [1]\n");
+        usage.append("  -batchSizeKB <KB>              Also close batches at this many KB of bound values (0 disables) [0]\n");
         usage.append("  -queryTimeout <# seconds>      Query timeout (in seconds) [2]\n");
         usage.append("  -numRetries <numRetries>       Number of times to retry the INSERT [1]\n");
+        usage.append("  -delayedRetries <numRetries>   Number of times to send a failed INSERT again later, before it counts as an error [0]\n");
+        usage.append("  -retryDelay <ms>               Delay before the first delayed retry - doubles with every retry, with jitter [100]\n");
+        usage.append("  -maxRetryDelay <ms>            Maximum delay between delayed retries [10000]\n");
+        usage.append("  -maxRetryFutures <numFutures>  Delayed retries in flight, on top of -numFutures [100]\n");
+        usage.append("  -maxRetryBytes <bytes>         Maximum bytes of bound values waiting for a delayed retry [67108864]\n");
         usage.append("  -maxInsertErrors <# errors>    Maximum INSERT errors to endure [10]\n");
         usage.append("  -rate <rows-per-second>        Maximum insert rate [50000]\n");
+        usage.append("  -byteRate <bytes-per-second>   Maximum insert rate in bytes of bound values [none]\n");
+        usage.append("  -maxInFlightBytes <bytes>      Maximum bytes of bound values in flight [none]\n");
         usage.append("  -progressRate <num txns>       How often to report the insert rate [100000]\n");
         usage.append("  -rateFile <filename>           Where to print the rate statistics\n");
         usage.append("  -successDir <dir>              Directory where to move successfully loaded files\n");
         usage.append("  -failureDir <dir>              Directory where to move files that did not successfully load\n");
         usage.append("  -nullsUnset [false|true]       Treat nulls as unset [false]\n");
+        usage.append("  -specializedBind [false|true]  Parse and bind each line through code composed for the schema [false]\n");
+        usage.append("  -textDictionary <# values>     Reuse the parsed values of text columns with up to this many distinct values (0 disables) [1024]\n");
         usage.append("  -filePattern <pattern>         When -f is a folder: use only files matching this pattern [all files]\n");
+        usage.append("  -splitSize <MB>                When -f is a folder: split files larger than this across threads (0 disables) [256]\n");
+        usage.append("  -coalesce <numFiles>           When -f is a folder: read the next file while up to this many files per thread wait for their rows (0 disables) [0]\n");
+        usage.append("  -watch [false|true]            Keep running and load new files as they appear in the -f folder [false]\n");
+        usage.append("  -stableMillis <ms>             With -watch: a file is complete when unchanged for this long [5000]\n");
+        usage.append("  -readyMarker <suffix>          With -watch: a file is complete when <file><suffix> exists [none]\n");
 
         usage.append("\n\nExamples:\n");
         usage.append("cassandra-loader -f /path/to/file.csv -host localhost -schema \"test.test3(a, b, c)\"\n");
         usage.append("cassandra-loader -f /path/to/directory -host 1.2.3.4 -schema \"test.test3(a, b, c)\" -delim \"\\t\" -numThreads 10\n");
         usage.append("cassandra-loader -f stdin -host localhost -schema \"test.test3(a, b, c)\" -user myuser -pw mypassword\n");
+        usage.append("cassandra-loader -f /path/to/file.csv -host localhost -schema \"test.test3(a, b, c);test.test3_by_b(b, a, c)\"\n");
         return usage.toString();
     }
 
@@ -111,10 +164,34 @@ public class CqlDelimLoad extends ConfigurationLoader {
             System.err.println("Number of futures must be positive (" + numFutures + ")");
             return false;
         }
+        if ((-1 != numFuturesPerHost) && (0 >= numFuturesPerHost)) {
+            System.err.println("Number of futures per host must be positive (" + numFuturesPerHost + ")");
+            return false;
+        }
+        if (adaptiveFutures && (numFutures > maxNumFutures)) {
+            System.err.println("Maximum number of futures must be at least -numFutures (" + maxNumFutures + ")");
+            return false;
+        }
+        if ((-1 != maxHostFutures) && (0 >= maxHostFutures)) {
+            System.err.println("Maximum number of futures per host must be positive (" + maxHostFutures + ")");
+            return false;
+        }
+        if ((-1 != hostRate) && (0 >= hostRate)) {
+            System.err.println("Host rate must be positive");
+            return false;
+        }
         if (0 >= batchSize) {
             System.err.println("Batch size must be positive (" + batchSize + ")");
             return false;
         }
+        if (0 > batchSizeKB) {
+            System.err.println("-batchSizeKB must be non-negative");
+            return false;
+        }
+        if ((0 < batchSizeKB) && (1 == batchSize)) {
+            System.err.println("-batchSizeKB needs -batchSize greater than 1");
+            return false;
+        }
         if (0 >= queryTimeout) {
             System.err.println("Query timeout must be positive");
             return false;
@@ -127,6 +204,19 @@ public class CqlDelimLoad extends ConfigurationLoader {
             System.err.println("Number of retries must be non-negative");
             return false;
         }
+        if (0 > delayedRetries) {
+            System.err.println("Number of delayed retries must be non-negative");
+            return false;
+        }
+        // a retry that finds no room waits retryDelay, too - 0 would spin
+        if ((0 >= retryDelay) || (retryDelay > maxRetryDelay)) {
+            System.err.println("Retry delay must be positive and not larger than -maxRetryDelay");
+            return false;
+        }
+        if ((0 >= maxRetryFutures) || (0 >= maxRetryBytes)) {
+            System.err.println("-maxRetryFutures and -maxRetryBytes must be positive");
+            return false;
+        }
         if (0 > skipRows) {
             System.err.println("Number of rows to skip must be non-negative");
             return false;
@@ -139,6 +229,10 @@ public class CqlDelimLoad extends ConfigurationLoader {
             System.err.println("Maximum number of parse errors must be non-negative");
             return false;
         }
+        if (0 > splitSize) {
+            System.err.println("Split size must be non-negative");
+            return false;
+        }
         if (0 > progressRate) {
             System.err.println("Progress rate must be non-negative");
             return false;
@@ -149,7 +243,7 @@ public class CqlDelimLoad extends ConfigurationLoader {
                 System.err.println("The -f argument needs to be a file or a directory");
                 return false;
             }
-            if (infile.isDirectory()) {
+            if (infile.isDirectory() && !watch) {
                 File[] infileList = infile.listFiles();
                 if (infileList.length < 1) {
                     System.err.println("The directory supplied is empty");
@@ -157,6 +251,32 @@ public class CqlDelimLoad extends ConfigurationLoader {
                 }
             }
         }
+        if (watch) {
+            if (STDIN.equalsIgnoreCase(filename) || !new File(filename).isDirectory()) {
+                System.err.println("-watch requires -f to be a directory");
+                return false;
+            }
+            if (0 > stableMillis) {
+                System.err.println("-stableMillis must be non-negative");
+                return false;
+            }
+        }
+        if (0 > coalesce) {
+            System.err.println("-coalesce must be non-negative");
+            return false;
+        }
+        if (0 > textDictionary) {
+            System.err.println("-textDictionary must be non-negative");
+            return false;
+        }
+        if (specializedBind && !fanOutSchemas.isEmpty()) {
+            System.err.println("Cannot use -specializedBind with more than one -schema");
+            return false;
+        }
+        if ((null != badDir) && !new File(badDir).isDirectory()) {
+            System.err.println("-badDir must be a directory");
+            return false;
+        }
         if (null != successDir) {
             if (STDIN.equalsIgnoreCase(filename)) {
                 System.err.println("Cannot specify -successDir with stdin");
@@ -184,19 +304,47 @@ public class CqlDelimLoad extends ConfigurationLoader {
             System.err.println("Rate must be positive");
             return false;
         }
+        if ((-1 != byteRate) && (0 >= byteRate)) {
+            System.err.println("Byte rate must be positive");
+            return false;
+        }
+        if ((-1 != maxInFlightBytes) && (0 >= maxInFlightBytes)) {
+            System.err.println("Maximum bytes in flight must be positive");
+            return false;
+        }
 
         return true;
     }
 
     protected boolean parseArgsFromMap(Map<String, String> amap) {
-        super.parseArgsFromMap(amap);
+        if (!super.parseArgsFromMap(amap))
+            return false;
+
+        // "ks.t1(a,b,c);ks.t2(b,a,c)" - the first one describes the input
+        String[] schemas = cqlSchema.split(";");
+        cqlSchema = schemas[0].trim();
+        for (int i = 1; i < schemas.length; i++) {
+            if (0 < schemas[i].trim().length())
+                fanOutSchemas.add(schemas[i].trim());
+        }
 
         String tkey;
-        if (null != (tkey = amap.remove("-numFutures"))) inNumFutures = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-numFutures"))) numFutures = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-adaptiveFutures"))) adaptiveFutures = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-maxNumFutures"))) maxNumFutures = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-maxHostFutures"))) maxHostFutures = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-hostRate"))) hostRate = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-numFuturesPerHost"))) numFuturesPerHost = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-batchSize"))) batchSize = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-batchSizeKB"))) batchSizeKB = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-queryTimeout"))) queryTimeout = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-maxInsertErrors"))) maxInsertErrors = Long.parseLong(tkey);
         if (null != (tkey = amap.remove("-numRetries"))) numRetries = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-delayedRetries"))) delayedRetries = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-retryDelay"))) retryDelay = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-maxRetryDelay"))) maxRetryDelay = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-maxRetryFutures"))) maxRetryFutures = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-maxRetryBytes"))) maxRetryBytes = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-maxErrors"))) maxErrors = Long.parseLong(tkey);
         if (null != (tkey = amap.remove("-skipRows"))) skipRows = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-skipCols"))) skipCols = tkey;
@@ -213,11 +361,20 @@ public class CqlDelimLoad extends ConfigurationLoader {
         }
         if (null != (tkey = amap.remove("-numThreads"))) numThreads = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-rate"))) rate = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-byteRate"))) byteRate = Double.parseDouble(tkey);
+        if (null != (tkey = amap.remove("-maxInFlightBytes"))) maxInFlightBytes = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-progressRate"))) progressRate = Long.parseLong(tkey);
         if (null != (tkey = amap.remove("-rateFile"))) rateFile = tkey;
         if (null != (tkey = amap.remove("-successDir"))) successDir = tkey;
         if (null != (tkey = amap.remove("-failureDir"))) failureDir = tkey;
         if (null != (tkey = amap.remove("-nullsUnset"))) nullsUnset = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-specializedBind"))) specializedBind = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-textDictionary"))) textDictionary = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-splitSize"))) splitSize = Long.parseLong(tkey) * 1024 * 1024;
+        if (null != (tkey = amap.remove("-coalesce"))) coalesce = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-watch"))) watch = Boolean.parseBoolean(tkey);
+        if (null != (tkey = amap.remove("-stableMillis"))) stableMillis = Long.parseLong(tkey);
+        if (null != (tkey = amap.remove("-readyMarker"))) readyMarker = tkey;
 
         if (-1 == maxRows) {
             maxRows = Long.MAX_VALUE;
@@ -236,10 +393,6 @@ public class CqlDelimLoad extends ConfigurationLoader {
             return false;
         }
 
-        if (0 < inNumFutures) {
-            numFutures = inNumFutures / numThreads;
-        }
-
         return true;
     }
 
@@ -248,10 +401,26 @@ public class CqlDelimLoad extends ConfigurationLoader {
         return 8;
     }
 
+    private boolean perHostControl() {
+        return (0 < maxHostFutures) || (0 < hostRate);
+    }
+
+    @Override
+    protected LoadBalancingPolicy getLoadBalancingPolicy() {
+        if (perHostControl())
+            return new HostHintPolicy(super.getLoadBalancingPolicy());
+        return super.getLoadBalancingPolicy();
+    }
+
     @Override
     protected Session getSession(Cluster cluster) throws FileNotFoundException {
-        Session tsession = cluster.connect();
+        return attach(cluster.connect());
+    }
 
+    // Sets up the rate limiter, the in-flight window and the control
+    // around a connected session
+    private Session attach(Session tsession) throws FileNotFoundException {
+        Cluster cluster = tsession.getCluster();
         if ((0 > cluster.getConfiguration().getProtocolOptions()
                 .getProtocolVersion().compareTo(ProtocolVersion.V4))
                 && nullsUnset) {
@@ -267,18 +436,52 @@ public class CqlDelimLoad extends ConfigurationLoader {
                 rateStream = new PrintStream(new BufferedOutputStream(new FileOutputStream(rateFile)), true);
             }
         }
-        Metrics metrics = cluster.getMetrics();
-        com.codahale.metrics.Timer timer = metrics.getRequestsTimer();
+        // a Cluster built withoutMetrics() has none
+        com.codahale.metrics.Timer timer = (null == cluster.getMetrics())
+                ? null : cluster.getMetrics().getRequestsTimer();
         rateLimiter = new RateLimiter(rate, progressRate, timer, rateStream);
         //rateLimiter = new Latency999RateLimiter(rate, progressRate, 3000, 200, 10, 0.5, 0.1, cluster, false);
-        session = new RateLimitedSession(tsession, rateLimiter);
+        session = new RateLimitedSession(tsession, rateLimiter, byteRate);
+
+        // One in-flight window for the whole run, shared by all tasks
+        int inFlight = numFutures;
+        if (0 < numFuturesPerHost)
+            inFlight = numFuturesPerHost * cluster.getMetadata().getAllHosts().size();
+        if (adaptiveFutures)
+            inFlightBudget = new AdaptiveInFlightBudget(inFlight, 1,
+                    Math.max(inFlight, maxNumFutures), System.err);
+        else
+            inFlightBudget = new InFlightBudget(inFlight);
+        if (0 < maxInFlightBytes)
+            inFlightBytes = new InFlightBudget(maxInFlightBytes);
+        if (perHostControl())
+            hostThrottle = new HostThrottle(cluster,
+                    (0 < maxHostFutures) ? maxHostFutures : inFlight, hostRate);
+        metrics.registerGauge("inFlight", inFlightBudget::getInFlight);
+        metrics.registerGauge("inFlight.limit", inFlightBudget::getLimit);
+        if (null != inFlightBytes)
+            metrics.registerGauge("inFlight.bytes", inFlightBytes::getInFlight);
+        if (0 < delayedRetries) {
+            retryQueue = new RetryQueue(delayedRetries, retryDelay, maxRetryDelay,
+                    maxRetryFutures, maxRetryBytes, tsession);
+            metrics.registerGauge("retry.inFlight", retryQueue::getInFlight);
+            metrics.registerGauge("retry.bytes", () -> (int) retryQueue.getHeldBytes());
+        }
+        control = new LoaderControl(rateLimiter, inFlightBudget);
+        control.register("CqlDelimLoad");
         return session;
     }
 
     @Override
     protected void cleanup() {
         super.cleanup();
-        rateLimiter.report(null, null);
+        if (null != control)
+            control.unregister();
+        if (null == rateLimiter)
+            return;
+        rateLimiter.close();
+        if (0 < progressRate)
+            rateLimiter.report(null, null);
         if (null != rateStream)
             rateStream.close();
     }
@@ -297,8 +500,11 @@ public class CqlDelimLoad extends ConfigurationLoader {
         if (!setup())
             return false;
 
+        if (watch)
+            return runWatch();
+
         // open file
-        Deque<File> fileList = new ArrayDeque<>();
+        List<File> fileList = new ArrayList<>();
         File infile;
         File[] inFileList;
         boolean onefile = true;
@@ -311,15 +517,13 @@ public class CqlDelimLoad extends ConfigurationLoader {
                 if (inFileList.length < 1)
                     throw new IOException("directory is empty");
                 onefile = false;
-                Arrays.sort(inFileList,
-                        (f1, f2) -> f1.getName().compareTo(f2.getName()));
                 PathMatcher matcher = null;
                 if (filePattern != null) {
                     matcher = FileSystems.getDefault().getPathMatcher(filePattern);
                 }
                 for (final File file : inFileList) {
                     if (matcher == null || matcher.matches(file.toPath().getFileName())) {
-                        fileList.push(file);
+                        fileList.add(file);
                     }
                 }
             }
@@ -328,6 +532,14 @@ public class CqlDelimLoad extends ConfigurationLoader {
         final CqlDelimParser cqlDelimParser = new CqlDelimParser(cqlSchema, delimiter, nullString,
                 dateFormatString, boolStyle, locale,
                 skipCols, session, true, quote, escape, maxCharsPerColumn);
+        cqlDelimParser.setTextDictionary(textDictionary);
+
+        // Prepare the INSERT once - all tasks share it
+        final PreparedStatement statement = prepareInsert(cqlDelimParser);
+        if (!prepareFanOut(cqlDelimParser)) {
+            cleanup();
+            return false;
+        }
 
         // Launch Threads
         ExecutorService executor;
@@ -335,17 +547,35 @@ public class CqlDelimLoad extends ConfigurationLoader {
         if (onefile) {
             // One file/stdin to process
             executor = Executors.newSingleThreadExecutor();
-            Callable<Long> worker = getWorker(infile, cqlDelimParser);
+            Callable<Long> worker = getWorker(infile, perThread(cqlDelimParser), statement);
             Future<Long> res = executor.submit(worker);
             total = res.get();
             executor.shutdown();
         } else {
+            // Largest splits first - the pool hands the next split to
+            // whichever thread becomes idle
+            // -skipRows and -maxRows count lines from the start of a file,
+            // which a split other than the first does not know
+            long tSplitSize = ((Long.MAX_VALUE == maxRows) && (0 == skipRows)) ? splitSize : 0;
+            List<FileSplit> splits = FileSplit.plan(fileList, tSplitSize);
             executor = Executors.newFixedThreadPool(numThreads);
             Set<Future<Long>> results = new HashSet<>();
-            while (!fileList.isEmpty()) {
-                File tFile = fileList.pop();
-                Callable<Long> worker = getWorker(tFile, cqlDelimParser);
-                results.add(executor.submit(worker));
+            if (0 < coalesce) {
+                // Long-lived tasks that take the next split themselves
+                Queue<FileSplit> queue = new ConcurrentLinkedQueue<>(splits);
+                metrics.getInputsQueued().inc(splits.size());
+                for (int i = 0; i < numThreads; i++) {
+                    final CqlDelimParser parser = cqlDelimParser.duplicate();
+                    results.add(executor.submit(new CqlDelimCoalesceTask(queue,
+                            split -> newTask(split, parser, statement),
+                            coalesce, control, metrics)));
+                }
+            } else {
+                ThreadLocal<CqlDelimParser> parsers = perThread(cqlDelimParser);
+                for (FileSplit split : splits) {
+                    Callable<Long> worker = getWorker(split, parsers, statement);
+                    results.add(executor.submit(worker));
+                }
             }
             executor.shutdown();
             for (Future<Long> res : results)
@@ -359,18 +589,277 @@ public class CqlDelimLoad extends ConfigurationLoader {
         return true;
     }
 
-    private Callable<Long> getWorker(File tFile, CqlDelimParser cqlDelimParser) {
-        return new CqlDelimLoadTask(
+    // Library use: loads one stream through the caller's session
+    private LoaderStats load(BufferedReader reader, String name)
+            throws IOException, ParseException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            CqlDelimParser cqlDelimParser = new CqlDelimParser(cqlSchema, delimiter, nullString,
+                    dateFormatString, boolStyle, locale,
+                    skipCols, session, true, quote, escape, maxCharsPerColumn);
+            cqlDelimParser.setTextDictionary(textDictionary);
+            PreparedStatement statement = prepareInsert(cqlDelimParser);
+            if (!prepareFanOut(cqlDelimParser))
+                throw new IllegalArgumentException("Bad -schema: " + fanOutSchemas);
+            CqlDelimLoadTask task = new CqlDelimLoadTask(maxErrors, skipRows, maxRows,
+                    badDir, reader, name, session, statement,
+                    inFlightBudget, inFlightBytes, hostThrottle, retryQueue, batchSize,
+                    queryTimeout, maxInsertErrors, nullsUnset, cqlDelimParser,
+                    control, metrics);
+            task.setFanOut(fanOut);
+            task.setSpecializedBind(specializedBind);
+            task.setMaxBatchBytes(batchSizeKB * 1024);
+            long result = task.call();
+            return new LoaderStats(0 <= result, task.getNumInserted(),
+                    metrics.getLinesRead().getCount(), metrics.getParseErrors().getCount(),
+                    metrics.getInsertErrors().getCount(), System.currentTimeMillis() - start);
+        } finally {
+            cleanup();
+        }
+    }
+
+    public static Builder builder(Session inSession) {
+        return new Builder(inSession);
+    }
+
+    // Loads from a stream through an existing session, without touching
+    // System.exit or closing the session:
+    //   CqlDelimLoad.builder(session).schema("ks.t(a, b)")
+    //           .option("-batchSize", "8").from(reader).start()
+    // Options are the command line options, e.g. -delim, -rate, -badDir;
+    // -host, -f and the connection options do not apply.  Without -badDir
+    // no BADPARSE/BADINSERT/LOG files are written.
+    public static class Builder {
+        private final Session session;
+        private final Map<String, String> options = new HashMap<>();
+        private String schema = null;
+        private BufferedReader reader = null;
+        private String name = "stream";
+        private Executor executor = null;
+
+        private Builder(Session inSession) {
+            session = inSession;
+        }
+
+        public Builder schema(String inSchema) {
+            schema = inSchema;
+            return this;
+        }
+
+        public Builder option(String inName, String inValue) {
+            options.put(inName, inValue);
+            return this;
+        }
+
+        public Builder from(Reader inReader) {
+            reader = (inReader instanceof BufferedReader)
+                    ? (BufferedReader) inReader : new BufferedReader(inReader);
+            return this;
+        }
+
+        public Builder from(InputStream inStream) {
+            return from(new InputStreamReader(inStream));
+        }
+
+        public Builder from(Iterator<String> inLines) {
+            reader = new IteratorReader(inLines);
+            return this;
+        }
+
+        // Names the input in the messages and the -badDir files [stream]
+        public Builder name(String inName) {
+            name = inName;
+            return this;
+        }
+
+        // Where to run the load [a new thread]
+        public Builder executor(Executor inExecutor) {
+            executor = inExecutor;
+            return this;
+        }
+
+        // The caller keeps ownership of the stream; it is read to the end
+        // but not closed
+        public CompletionStage<LoaderStats> start() throws FileNotFoundException {
+            if ((null == schema) || (null == reader))
+                throw new IllegalStateException("schema and input are required");
+            CqlDelimLoad cdl = new CqlDelimLoad();
+            cdl.ownsSession = false;
+            cdl.badDir = null;
+            cdl.progressRate = 0;
+            if (!cdl.parseOptions(schema, STDIN, options))
+                throw new IllegalArgumentException("Bad options: " + options);
+            cdl.session = cdl.attach(session);
+            if (null == cdl.session)
+                throw new IllegalArgumentException("Bad options: " + options);
+            Executor tExecutor = (null != executor) ? executor : r -> {
+                Thread t = new Thread(r, "cqldelimload-" + name);
+                t.setDaemon(true);
+                t.start();
+            };
+            final BufferedReader tReader = reader;
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return cdl.load(tReader, name);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, tExecutor);
+        }
+    }
+
+    private PreparedStatement prepareInsert(CqlDelimParser cqlDelimParser) {
+        PreparedStatement statement = session.prepare(cqlDelimParser.generateInsert());
+        statement.setRetryPolicy(new LoaderRetryPolicy(numRetries));
+        statement.setConsistencyLevel(consistencyLevel);
+        if (specializedBind && (null == cqlDelimParser.binder(statement, nullsUnset)))
+            System.err.println("Warning: -specializedBind ignored - the bind markers of the INSERT"
+                    + " do not match the columns of the -schema");
+        return statement;
+    }
+
+    // One more prepared INSERT per further -schema, with its columns
+    // looked up in the input
+    private boolean prepareFanOut(CqlDelimParser cqlDelimParser) throws ParseException {
+        List<InsertTarget> targets = new ArrayList<>();
+        for (String schema : fanOutSchemas) {
+            CqlDelimParser target = new CqlDelimParser(schema, delimiter, nullString,
+                    dateFormatString, boolStyle, locale,
+                    null, session, true, quote, escape, maxCharsPerColumn);
+            InsertTarget insertTarget = InsertTarget.create(cqlDelimParser, target,
+                    prepareInsert(target));
+            if (null == insertTarget)
+                return false;
+            targets.add(insertTarget);
+        }
+        fanOut = targets;
+        return true;
+    }
+
+    // Daemon mode: keep the Session (and its prepared INSERT and rate
+    // limiter) warm, and load files from the -f directory as they complete
+    private boolean runWatch() throws ParseException, InterruptedException {
+        final CqlDelimParser cqlDelimParser = new CqlDelimParser(cqlSchema, delimiter, nullString,
+                dateFormatString, boolStyle, locale,
+                skipCols, session, true, quote, escape, maxCharsPerColumn);
+        cqlDelimParser.setTextDictionary(textDictionary);
+        final PreparedStatement statement = prepareInsert(cqlDelimParser);
+        if (!prepareFanOut(cqlDelimParser)) {
+            cleanup();
+            return false;
+        }
+
+        PathMatcher matcher = null;
+        if (filePattern != null) {
+            matcher = FileSystems.getDefault().getPathMatcher(filePattern);
+        }
+        final DirectoryWatcher watcher = new DirectoryWatcher(new File(filename).toPath(),
+                matcher, stableMillis, readyMarker);
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final ThreadLocal<CqlDelimParser> parsers = perThread(cqlDelimParser);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        control.onDrain(watcher::stop);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            watcher.stop();
+            try {
+                stopped.await();
+            } catch (InterruptedException ignored) {
+            }
+        }));
+
+        System.err.println("*** Watching " + filename);
+        boolean success = true;
+        try {
+            watcher.watch(file -> {
+                final Callable<Long> worker = getWorker(file, parsers, statement);
+                executor.submit(() -> {
+                    try {
+                        worker.call();
+                    } catch (Exception e) {
+                        System.err.println("Error loading " + file.getName() + ": " + e.getMessage());
+                    }
+                });
+            });
+        } catch (IOException ioe) {
+            System.err.println("Error watching " + filename + ": " + ioe.getMessage());
+            success = false;
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            cleanup();
+            stopped.countDown();
+        }
+        return success;
+    }
+
+    // The task, and the parser copy it needs, are only made when a pool
+    // thread picks the input up, so memory grows with the threads and not
+    // with the number of inputs
+    private Callable<Long> getWorker(FileSplit split, ThreadLocal<CqlDelimParser> parsers,
+                                     PreparedStatement statement) {
+        metrics.getInputsQueued().inc();
+        return () -> {
+            metrics.getInputsQueued().dec();
+            return newTask(split, parsers.get(), statement).call();
+        };
+    }
+
+    private Callable<Long> getWorker(File tFile, ThreadLocal<CqlDelimParser> parsers,
+                                     PreparedStatement statement) {
+        metrics.getInputsQueued().inc();
+        return () -> {
+            metrics.getInputsQueued().dec();
+            return newTask(tFile, parsers.get(), statement).call();
+        };
+    }
+
+    // One copy of the parser per pool thread, made on first use.  The
+    // Parsers are not thread-safe, but the tasks of one thread can share.
+    private static ThreadLocal<CqlDelimParser> perThread(final CqlDelimParser cqlDelimParser) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return cqlDelimParser.duplicate();
+            } catch (ParseException pe) {
+                throw new IllegalStateException("Cannot copy the parser", pe);
+            }
+        });
+    }
+
+    // The parser is not copied - the tasks of one thread can share one
+    private CqlDelimLoadTask newTask(FileSplit split, CqlDelimParser cqlDelimParser,
+                                     PreparedStatement statement) {
+        CqlDelimLoadTask task = new CqlDelimLoadTask(
+                maxErrors, skipRows,
+                maxRows, badDir, split,
+                session,
+                statement,
+                inFlightBudget, inFlightBytes, hostThrottle, retryQueue, batchSize,
+                queryTimeout,
+                maxInsertErrors,
+                successDir, failureDir,
+                nullsUnset, cqlDelimParser, control, metrics);
+        task.setFanOut(fanOut);
+        task.setSpecializedBind(specializedBind);
+        task.setMaxBatchBytes(batchSizeKB * 1024);
+        return task;
+    }
+
+    private CqlDelimLoadTask newTask(File tFile, CqlDelimParser cqlDelimParser,
+                                     PreparedStatement statement) {
+        CqlDelimLoadTask task = new CqlDelimLoadTask(
                 maxErrors, skipRows,
                 maxRows, badDir, tFile,
                 session,
-                consistencyLevel,
-                numFutures, batchSize,
-                numRetries,
+                statement,
+                inFlightBudget, inFlightBytes, hostThrottle, retryQueue, batchSize,
                 queryTimeout,
                 maxInsertErrors,
                 successDir, failureDir,
-                nullsUnset, cqlDelimParser);
+                nullsUnset, cqlDelimParser, control, metrics);
+        task.setFanOut(fanOut);
+        task.setSpecializedBind(specializedBind);
+        task.setMaxBatchBytes(batchSizeKB * 1024);
+        return task;
     }
 }
 
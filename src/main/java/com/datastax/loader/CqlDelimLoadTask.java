@@ -17,7 +17,16 @@ package com.datastax.loader;
 
 import com.datastax.driver.core.*;
 import com.datastax.loader.futures.FutureManager;
+import com.datastax.loader.futures.HostThrottle;
+import com.datastax.loader.futures.InFlightBudget;
 import com.datastax.loader.futures.PrintingFutureSet;
+import com.datastax.loader.futures.RetryQueue;
+import com.datastax.loader.parser.RowBinder;
+import com.datastax.loader.util.AsyncLineWriter;
+import com.datastax.loader.util.LoaderMetrics;
+import com.datastax.loader.util.MeteredInputStream;
+import com.datastax.loader.util.RangeInputStream;
+import com.datastax.loader.util.StatementUtils;
 
 import java.io.*;
 import java.nio.file.Files;
@@ -25,100 +34,292 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 class CqlDelimLoadTask implements Callable<Long> {
     private static final String BADPARSE = ".BADPARSE";
     private static final String BADINSERT = ".BADINSERT";
     private static final String LOG = ".LOG";
+    private static final String CHECKPOINT = ".CHECKPOINT";
+    // Only every BIND_SAMPLE-th row is timed - the timer is not free
+    private static final int BIND_SAMPLE = 16;
+    // With a log file, only the first parse errors also go to the console
+    private static final int MAX_CONSOLE_ERRORS = 10;
     private final CqlDelimParser cdp;
     private final Session session;
-    private final ConsistencyLevel consistencyLevel;
+    private final PreparedStatement statement;
     private final long maxErrors;
     private final String badDir;
     private final String successDir;
     private final String failureDir;
     private final File infile;
-    private final int numFutures;
+    private final FileSplit split;
+    private final BufferedReader source;
+    private final String sourceName;
+    private final InFlightBudget inFlightBudget;
+    private final InFlightBudget inFlightBytes;
+    private final HostThrottle hostThrottle;
+    private final RetryQueue retryQueue;
     private final int batchSize;
     private final boolean nullsUnset;
-    private PreparedStatement statement;
+    private final LoaderControl control;
+    private final LoaderMetrics metrics;
     private long skipRows;
     private long maxRows;
     private String readerName;
-    private PrintStream badParsePrinter = null;
-    private PrintStream badInsertPrinter = null;
-    private PrintStream logPrinter = null;
+    private AsyncLineWriter badParsePrinter = null;
+    private AsyncLineWriter badInsertPrinter = null;
+    private AsyncLineWriter logPrinter = null;
     private String logFname = "";
     private BufferedReader reader;
     private long queryTimeout = 2;
-    private int numRetries = 1;
     private long maxInsertErrors = 10;
+    private FutureManager fm;
+    private BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+    // bytes of bound values in batch, and where to close it (0: no limit)
+    private int batchBytes = 0;
+    private int maxBatchBytes = 0;
+    // the last line added to batch, for BADINSERT, and the input rows
+    // in it - with further tables, it holds more statements than rows
+    private String batchLine = null;
+    private int batchRows = 0;
+    private List<InsertTarget> fanOut = Collections.emptyList();
+    private boolean specializedBind = false;
+    private RowBinder binder = null;
+    private int lineNumber = 0;
+    // input rows and statements handed to the driver
+    private long numInserted = 0;
+    private long numStatements = 0;
+    private boolean drained = false;
+    // set once cleanup() has run, so the input is only let go of once
+    private boolean finished = false;
+    private long result = 0;
 
     public CqlDelimLoadTask(long inMaxErrors, long inSkipRows,
                             long inMaxRows,
                             String inBadDir, File inFile,
-                            Session inSession, ConsistencyLevel inCl,
-                            int inNumFutures, int inBatchSize, int inNumRetries,
+                            Session inSession, PreparedStatement inStatement,
+                            InFlightBudget inInFlightBudget, InFlightBudget inInFlightBytes,
+                            HostThrottle inHostThrottle, RetryQueue inRetryQueue, int inBatchSize,
                             int inQueryTimeout, long inMaxInsertErrors,
                             String inSuccessDir, String inFailureDir,
-                            boolean inNullsUnset, CqlDelimParser inCdp) {
+                            boolean inNullsUnset, CqlDelimParser inCdp,
+                            LoaderControl inControl, LoaderMetrics inMetrics) {
+        this(inMaxErrors, inSkipRows, inMaxRows, inBadDir, inFile, null, null, null,
+                inSession, inStatement, inInFlightBudget, inInFlightBytes,
+                inHostThrottle, inRetryQueue, inBatchSize,
+                inQueryTimeout, inMaxInsertErrors, inSuccessDir, inFailureDir,
+                inNullsUnset, inCdp, inControl, inMetrics);
+    }
+
+    public CqlDelimLoadTask(long inMaxErrors, long inSkipRows,
+                            long inMaxRows,
+                            String inBadDir, FileSplit inSplit,
+                            Session inSession, PreparedStatement inStatement,
+                            InFlightBudget inInFlightBudget, InFlightBudget inInFlightBytes,
+                            HostThrottle inHostThrottle, RetryQueue inRetryQueue, int inBatchSize,
+                            int inQueryTimeout, long inMaxInsertErrors,
+                            String inSuccessDir, String inFailureDir,
+                            boolean inNullsUnset, CqlDelimParser inCdp,
+                            LoaderControl inControl, LoaderMetrics inMetrics) {
+        this(inMaxErrors, (0 == inSplit.getIndex()) ? inSkipRows : 0,
+                inMaxRows, inBadDir, inSplit.getFile(), inSplit, null, null,
+                inSession, inStatement, inInFlightBudget, inInFlightBytes,
+                inHostThrottle, inRetryQueue, inBatchSize,
+                inQueryTimeout, inMaxInsertErrors, inSuccessDir, inFailureDir,
+                inNullsUnset, inCdp, inControl, inMetrics);
+    }
+
+    // Reads from a stream the caller owns, e.g. when used as a library;
+    // the name is used for the BADPARSE/BADINSERT/LOG files
+    public CqlDelimLoadTask(long inMaxErrors, long inSkipRows,
+                            long inMaxRows,
+                            String inBadDir, BufferedReader inReader, String inReaderName,
+                            Session inSession, PreparedStatement inStatement,
+                            InFlightBudget inInFlightBudget, InFlightBudget inInFlightBytes,
+                            HostThrottle inHostThrottle, RetryQueue inRetryQueue, int inBatchSize,
+                            int inQueryTimeout, long inMaxInsertErrors,
+                            boolean inNullsUnset, CqlDelimParser inCdp,
+                            LoaderControl inControl, LoaderMetrics inMetrics) {
+        this(inMaxErrors, inSkipRows, inMaxRows, inBadDir, null, null, inReader, inReaderName,
+                inSession, inStatement, inInFlightBudget, inInFlightBytes,
+                inHostThrottle, inRetryQueue, inBatchSize,
+                inQueryTimeout, inMaxInsertErrors, null, null,
+                inNullsUnset, inCdp, inControl, inMetrics);
+    }
+
+    private CqlDelimLoadTask(long inMaxErrors, long inSkipRows,
+                             long inMaxRows,
+                             String inBadDir, File inFile, FileSplit inSplit,
+                             BufferedReader inReader, String inReaderName,
+                             Session inSession, PreparedStatement inStatement,
+                             InFlightBudget inInFlightBudget, InFlightBudget inInFlightBytes,
+                             HostThrottle inHostThrottle, RetryQueue inRetryQueue, int inBatchSize,
+                             int inQueryTimeout, long inMaxInsertErrors,
+                             String inSuccessDir, String inFailureDir,
+                             boolean inNullsUnset, CqlDelimParser inCdp,
+                             LoaderControl inControl, LoaderMetrics inMetrics) {
         maxErrors = inMaxErrors;
         skipRows = inSkipRows;
         maxRows = inMaxRows;
         badDir = inBadDir;
         infile = inFile;
+        split = inSplit;
+        source = inReader;
+        sourceName = inReaderName;
         session = inSession;
-        consistencyLevel = inCl;
-        numFutures = inNumFutures;
+        statement = inStatement;
+        inFlightBudget = inInFlightBudget;
+        inFlightBytes = inInFlightBytes;
+        hostThrottle = inHostThrottle;
+        retryQueue = inRetryQueue;
         batchSize = inBatchSize;
-        numRetries = inNumRetries;
         queryTimeout = inQueryTimeout;
         maxInsertErrors = inMaxInsertErrors;
         successDir = inSuccessDir;
         failureDir = inFailureDir;
         nullsUnset = inNullsUnset;
         cdp = inCdp;
+        control = inControl;
+        metrics = inMetrics;
+        metrics.getInputsQueued().inc();
+    }
+
+    public Long call() throws IOException, ParseException, InterruptedException {
+        if (!start())
+            return result;
+        return finish();
+    }
+
+    // Reads and sends the whole input, without waiting for the rows in
+    // flight.  Returns true if finish() has to be called, false if the
+    // input is already done with (see getResult()).
+    boolean start() throws IOException, InterruptedException {
+        metrics.getInputsQueued().dec();
+        // Inputs that have not started yet are left untouched
+        if (control.isDraining()) {
+            result = 0;
+            return false;
+        }
+        try {
+            setup();
+            return submit();
+        } catch (Throwable t) {
+            abort();
+            throw t;
+        }
+    }
+
+    // Whether finish() would return without waiting
+    boolean isDone() {
+        return fm.isDone();
+    }
+
+    // Further tables to write every row to, see -schema
+    void setFanOut(List<InsertTarget> inFanOut) {
+        fanOut = inFanOut;
+    }
+
+    // Close batches before their bound values exceed this many bytes, see
+    // -batchSizeKB
+    void setMaxBatchBytes(int inMaxBatchBytes) {
+        maxBatchBytes = inMaxBatchBytes;
     }
 
-    public Long call() throws IOException, ParseException {
-        setup();
-        long numInserted = execute();
-        return numInserted;
+    // Parse and bind each line in one go, see -specializedBind
+    void setSpecializedBind(boolean inSpecializedBind) {
+        specializedBind = inSpecializedBind;
+    }
+
+    long getResult() {
+        return result;
+    }
+
+    // Rows acknowledged so far - also when the input failed
+    long getNumInserted() {
+        return (null == fm) ? 0 : fm.getNumInserted();
     }
 
     private void setup() throws IOException {
-        if (null == infile) {
-            reader = new BufferedReader(new InputStreamReader(System.in));
+        if (null != source) {
+            reader = source;
+            readerName = sourceName;
+        } else if (null == infile) {
+            reader = new BufferedReader(new InputStreamReader(
+                    new MeteredInputStream(System.in, metrics.getBytesRead())));
             readerName = "stdin";
+        } else if ((null != split) && !split.isWholeFile()) {
+            reader = new BufferedReader(new InputStreamReader(
+                    new MeteredInputStream(new RangeInputStream(infile, split.getStart(), split.getEnd()),
+                            metrics.getBytesRead())));
+            readerName = infile.getName() + ".split" + split.getIndex();
         } else {
-            reader = new BufferedReader(new FileReader(infile));
+            reader = new BufferedReader(new InputStreamReader(
+                    new MeteredInputStream(new FileInputStream(infile), metrics.getBytesRead())));
             readerName = infile.getName();
         }
 
-        // Prepare Badfile
+        // Prepare Badfile - the files are only created if written to, but
+        // the ones of an earlier run go, so a clean rerun leaves none
+        // behind to be replayed
         if (null != badDir) {
-            badParsePrinter = new PrintStream(new BufferedOutputStream(new FileOutputStream(badDir + "/" + readerName + BADPARSE)));
-            badInsertPrinter = new PrintStream(new BufferedOutputStream(new FileOutputStream(badDir + "/" + readerName + BADINSERT)));
+            for (String suffix : new String[]{BADPARSE, BADINSERT, LOG})
+                Files.deleteIfExists(Paths.get(badDir, readerName + suffix));
+            badParsePrinter = new AsyncLineWriter(badDir + "/" + readerName + BADPARSE, true);
+            badInsertPrinter = new AsyncLineWriter(badDir + "/" + readerName + BADINSERT, true);
             logFname = badDir + "/" + readerName + LOG;
-            logPrinter = new PrintStream(new BufferedOutputStream(new FileOutputStream(logFname)));
+            logPrinter = new AsyncLineWriter(logFname);
         }
-
-
-        String insert = cdp.generateInsert();
-        statement = session.prepare(insert);
-        statement.setRetryPolicy(new LoaderRetryPolicy(numRetries));
-        statement.setConsistencyLevel(consistencyLevel);
+        if (specializedBind)
+            binder = cdp.binder(statement, nullsUnset);
     }
 
-    private void cleanup(boolean success) throws IOException {
+    private void close() throws IOException {
         if (null != badParsePrinter)
             badParsePrinter.close();
         if (null != badInsertPrinter)
             badInsertPrinter.close();
         if (null != logPrinter)
             logPrinter.close();
+        // a Reader handed in by the caller stays open
+        if ((null == source) && (null != reader))
+            reader.close();
+    }
+
+    private void cleanup(boolean success) throws IOException {
+        finished = true;
+        try {
+            close();
+        } finally {
+            release(success);
+        }
+    }
+
+    // An input that threw is done with, too - as a failure, so that its
+    // file is still moved once all of its splits are done
+    private void abort() {
+        if (finished)
+            return;
+        try {
+            if (null != fm)
+                fm.cleanup();
+            cleanup(false);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error cleaning up " + readerName + ": " + e.getMessage());
+        }
+    }
+
+    private void release(boolean success) throws IOException {
+        if (null != split) {
+            // only the last split of a file to finish moves it
+            if (!split.complete(success))
+                return;
+            success = split.succeeded();
+        }
         if (success) {
             if (null != successDir) {
                 Path src = infile.toPath();
@@ -136,23 +337,53 @@ class CqlDelimLoadTask implements Callable<Long> {
         }
     }
 
-    private long execute() throws IOException {
-        FutureManager fm = new PrintingFutureSet(numFutures, queryTimeout,
+    // Everything up to lineNumber has been acknowledged (or written to the
+    // BADPARSE/BADINSERT files), so the rest can be loaded later on
+    private void checkpoint(int lineNumber) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("input: ").append((null == infile) ? readerName : infile.getPath()).append("\n");
+        if ((null != split) && !split.isWholeFile())
+            sb.append("bytes: ").append(split.getStart()).append("-").append(split.getEnd()).append("\n");
+        sb.append("linesProcessed: ").append(lineNumber).append("\n");
+        if ((null == split) || split.isWholeFile())
+            sb.append("resume: -skipRows ").append(lineNumber).append("\n");
+        if (null != badDir) {
+            String fname = badDir + "/" + readerName + CHECKPOINT;
+            try (PrintStream ps = new PrintStream(new FileOutputStream(fname))) {
+                ps.print(sb);
+            }
+            System.err.println("*** DRAINED: " + readerName + "  checkpoint in " + fname);
+        } else {
+            System.err.println("*** DRAINED: " + readerName + "\n" + sb);
+        }
+    }
+
+    private boolean submit() throws IOException, InterruptedException {
+        fm = new PrintingFutureSet(session, inFlightBudget,
+                inFlightBytes, hostThrottle, retryQueue, queryTimeout,
                 maxInsertErrors,
+                (null == split) ? new AtomicLong(0) : split.getInsertErrors(),
                 logPrinter,
-                badInsertPrinter);
-        String line;
-        int lineNumber = 0;
-        long numInserted = 0;
+                badInsertPrinter, metrics);
+        String line = null;
         int numErrors = 0;
-        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
-        ResultSetFuture resultSetFuture;
         BoundStatement bind;
         List<Object> elements;
 
         System.err.println("*** Processing " + readerName);
-        while ((line = reader.readLine()) != null) {
+        while (true) {
+            control.awaitResumed();
+            if (control.isDraining()) {
+                drained = true;
+                break;
+            }
+            // another split of the file gave up
+            if ((null != split) && (maxErrors <= split.getParseErrors()))
+                return fail(-1);
+            if (null == (line = reader.readLine()))
+                break;
             lineNumber++;
+            metrics.getLinesRead().mark();
             if (skipRows > 0) {
                 skipRows--;
                 continue;
@@ -163,73 +394,165 @@ class CqlDelimLoadTask implements Callable<Long> {
             if (0 == line.trim().length())
                 continue;
 
-            if (null != (elements = cdp.parse(line))) {
+            if (null != binder) {
+                // parsed and bound in one go - the bind time includes parsing
+                long bindStart = (0 == lineNumber % BIND_SAMPLE) ? System.nanoTime() : 0;
+                bind = binder.bind(line);
+                if (null != bind) {
+                    metrics.getLinesParsed().mark();
+                    if (0 != bindStart)
+                        metrics.getBind().update(System.nanoTime() - bindStart, TimeUnit.NANOSECONDS);
+                    if (!send(bind, line, 1))
+                        return fail(-2);
+                    numInserted++;
+                    continue;
+                }
+            } else if (null != (elements = cdp.parse(line))) {
+                metrics.getLinesParsed().mark();
+                long bindStart = (0 == lineNumber % BIND_SAMPLE) ? System.nanoTime() : 0;
                 bind = statement.bind(elements.toArray());
                 if (nullsUnset) {
                     for (int i = 0; i < elements.size(); i++)
                         if (null == elements.get(i))
                             bind.unset(i);
                 }
-                if (1 == batchSize) {
-                    resultSetFuture = session.executeAsync(bind);
-                    if (!fm.add(resultSetFuture, line)) {
-                        System.err.println("There was an error.  Please check the log file for more information (" + logFname + ")");
-                        cleanup(false);
-                        return -2;
-                    }
-                    numInserted += 1;
-                } else {
-                    batch.add(bind);
-                    if (batchSize == batch.size()) {
-                        resultSetFuture = session.executeAsync(batch);
-                        if (!fm.add(resultSetFuture, line)) {
-                            System.err.println("There was an error.  Please check the log file for more information (" + logFname + ")");
-                            cleanup(false);
-                            return -2;
-                        }
-                        numInserted += batch.size();
-                        batch.clear();
-                    }
+                if (0 != bindStart)
+                    metrics.getBind().update(System.nanoTime() - bindStart, TimeUnit.NANOSECONDS);
+                if (!send(bind, line, 1))
+                    return fail(-2);
+                // the same values, to the other tables
+                for (InsertTarget target : fanOut) {
+                    if (!send(target.bind(elements, nullsUnset), line, 0))
+                        return fail(-2);
                 }
-            } else {
+                numInserted++;
+                continue;
+            }
+            // the line did not parse
+            metrics.getParseErrors().mark();
+            metrics.getParseErrors(cdp.getErrorType()).inc();
+            String error = String.format("Error parsing line %d in %s: %s (%s)",
+                    lineNumber, readerName, line, cdp.getErrorMessage());
+            // this thread may wait for the writers - the parse errors
+            // must not get lost
+            if (null != logPrinter) {
+                logPrinter.put(error);
+            }
+            if ((null == logPrinter) || (MAX_CONSOLE_ERRORS > numErrors)) {
+                System.err.println(error);
+            } else if (MAX_CONSOLE_ERRORS == numErrors) {
+                System.err.println("Further parse errors in " + readerName + " are only logged to " + logFname);
+            }
+            if (null != badParsePrinter) {
+                badParsePrinter.put(line);
+            }
+            numErrors++;
+            long fileErrors = (null == split) ? numErrors : split.addParseError();
+            if (maxErrors <= fileErrors) {
                 if (null != logPrinter) {
-                    logPrinter.println(String.format("Error parsing line %d in %s: %s", lineNumber, readerName, line));
-                }
-                System.err.println(String.format("Error parsing line %d in %s: %s", lineNumber, readerName, line));
-                if (null != badParsePrinter) {
-                    badParsePrinter.println(line);
-                }
-                numErrors++;
-                if (maxErrors <= numErrors) {
-                    if (null != logPrinter) {
-                        logPrinter.println(String.format("Maximum number of errors exceeded (%d) for %s", numErrors, readerName));
-                    }
-                    System.err.println(String.format("Maximum number of errors exceeded (%d) for %s", numErrors, readerName));
-                    cleanup(false);
-                    return -1;
+                    logPrinter.println(String.format("Maximum number of errors exceeded (%d) for %s", fileErrors, readerName));
                 }
+                System.err.println(String.format("Maximum number of errors exceeded (%d) for %s", fileErrors, readerName));
+                return fail(-1);
             }
         }
         if ((batchSize > 1) && (batch.size() > 0)) {
-            resultSetFuture = session.executeAsync(batch);
-            if (!fm.add(resultSetFuture, line)) {
-                cleanup(false);
-                return -2;
+            if (!fm.add(batch, batchLine, batchRows))
+                return fail(-2);
+            numStatements += batch.size();
+        }
+        return true;
+    }
+
+    private boolean send(BoundStatement bind, String line, int rows) {
+        if (1 == batchSize)
+            return sendAlone(bind, line, rows);
+        if (0 < maxBatchBytes) {
+            int size = StatementUtils.serializedSize(bind);
+            // too big for any batch - on its own it is not checked
+            // against the batch size thresholds at all
+            if (size > maxBatchBytes)
+                return sendAlone(bind, line, rows);
+            // close the batch before this row would take it over the limit
+            if ((batch.size() > 0) && (batchBytes + size > maxBatchBytes)) {
+                if (!sendBatch())
+                    return false;
             }
-            numInserted += batch.size();
+            batchBytes += size;
         }
+        batch.add(bind);
+        batchLine = line;
+        batchRows += rows;
+        if (batchSize == batch.size())
+            return sendBatch();
+        return true;
+    }
 
-        if (!fm.cleanup()) {
-            cleanup(false);
-            return -1;
+    private boolean sendAlone(BoundStatement bind, String line, int rows) {
+        if (!fm.add(bind, line, rows)) {
+            System.err.println("There was an error.  Please check the log file for more information (" + logFname + ")");
+            return false;
         }
+        numStatements += 1;
+        return true;
+    }
 
-        if (null != logPrinter) {
-            logPrinter.println("*** DONE: " + readerName + "  number of lines processed: " + lineNumber + " (" + numInserted + " inserted)");
+    private boolean sendBatch() {
+        if (!fm.add(batch, batchLine, batchRows)) {
+            System.err.println("There was an error.  Please check the log file for more information (" + logFname + ")");
+            return false;
         }
-        System.err.println("*** DONE: " + readerName + "  number of lines processed: " + lineNumber + " (" + numInserted + " inserted)");
+        numStatements += batch.size();
+        // the batch may still be waiting to be sent
+        batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batchBytes = 0;
+        batchRows = 0;
+        return true;
+    }
+
+    private String inserted() {
+        if (fanOut.isEmpty())
+            return numInserted + " inserted";
+        return numInserted + " inserted into " + (1 + fanOut.size()) + " tables, "
+                + numStatements + " statements";
+    }
 
-        cleanup(true);
-        return fm.getNumInserted();
+    private boolean fail(long inResult) throws IOException {
+        fm.cleanup();
+        cleanup(false);
+        result = inResult;
+        return false;
+    }
+
+    // Waits for the rows in flight and then moves the input to the
+    // success or failure directory
+    long finish() throws IOException {
+        try {
+            if (!fm.cleanup()) {
+                cleanup(false);
+                return -1;
+            }
+
+            if (drained) {
+                // the BADPARSE/BADINSERT lines are on disk before the
+                // checkpoint; the input stays where it is
+                finished = true;
+                close();
+                checkpoint(lineNumber);
+                return fm.getNumInserted();
+            }
+
+            // a clean input gets no log file of its own
+            if ((null != logPrinter) && logPrinter.isWritten()) {
+                logPrinter.println("*** DONE: " + readerName + "  number of lines processed: " + lineNumber + " (" + inserted() + ")");
+            }
+            System.err.println("*** DONE: " + readerName + "  number of lines processed: " + lineNumber + " (" + inserted() + ")");
+
+            cleanup(true);
+            return fm.getNumInserted();
+        } catch (Throwable t) {
+            abort();
+            throw t;
+        }
     }
 }
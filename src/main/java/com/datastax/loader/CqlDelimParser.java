@@ -16,9 +16,14 @@
 package com.datastax.loader;
 
 import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ColumnMetadata;
 import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
 import com.datastax.driver.core.exceptions.InvalidTypeException;
 import com.datastax.loader.parser.*;
 
@@ -32,17 +37,31 @@ public class CqlDelimParser {
     private List<SchemaBits> sbl;
     private String keyspace;
     private String tablename;
+    private List<String> partitionKey;
     private DelimParser delimParser;
+    private RowBinder binder = null;
+    private int textDictionary = 0;
+    private PreparedStatement binderStatement = null;
+    private boolean binderNullsUnset = false;
+    private final String delimiter;
+    private final String nullString;
+    private final String dateFormatString;
+    private final BooleanParser.BoolStyle boolStyle;
+    private final Locale locale;
+    private final String skipList;
+    private final boolean bLoader;
+    private final Character quote;
+    private final Character escape;
+    private final Integer maxCharsPerColumn;
 
     public CqlDelimParser(String inCqlSchema, String inDelimiter,
                           String inNullString, String inDateFormatString,
                           BooleanParser.BoolStyle inBoolStyle, Locale inLocale,
                           String skipList, Session session, boolean bLoader)
             throws ParseException {
-        // Optionally provide things for the line parser - date format, boolean format, locale
-        initPmap(inDateFormatString, inBoolStyle, inLocale, bLoader);
-        processCqlSchema(inCqlSchema, session);
-        createDelimParser(inDelimiter, inNullString, skipList);
+        this(inCqlSchema, inDelimiter, inNullString, inDateFormatString,
+                inBoolStyle, inLocale, skipList, session, bLoader,
+                null, null, null);
     }
 
     public CqlDelimParser(String inCqlSchema, String inDelimiter,
@@ -50,12 +69,83 @@ public class CqlDelimParser {
                           BooleanParser.BoolStyle inBoolStyle, Locale inLocale,
                           String skipList, Session session, boolean bLoader, Character quote, Character escape, Integer maxCharsPerColumn)
             throws ParseException {
+        delimiter = inDelimiter;
+        nullString = inNullString;
+        dateFormatString = inDateFormatString;
+        boolStyle = inBoolStyle;
+        locale = inLocale;
+        this.skipList = skipList;
+        this.bLoader = bLoader;
+        this.quote = quote;
+        this.escape = escape;
+        this.maxCharsPerColumn = maxCharsPerColumn;
         // Optionally provide things for the line parser - date format, boolean format, locale
         initPmap(inDateFormatString, inBoolStyle, inLocale, bLoader);
         processCqlSchema(inCqlSchema, session);
         createDelimParser(inDelimiter, inNullString, skipList, quote, escape, maxCharsPerColumn);
     }
 
+    // For callers that already know the column types (in the order of the
+    // schema) and the partition key - no Session needed
+    public CqlDelimParser(String inCqlSchema, List<DataType> inTypes,
+                          List<String> inPartitionKey, String inDelimiter,
+                          String inNullString, String inDateFormatString,
+                          BooleanParser.BoolStyle inBoolStyle, Locale inLocale,
+                          String skipList, boolean bLoader, Character quote, Character escape, Integer maxCharsPerColumn)
+            throws ParseException {
+        delimiter = inDelimiter;
+        nullString = inNullString;
+        dateFormatString = inDateFormatString;
+        boolStyle = inBoolStyle;
+        locale = inLocale;
+        this.skipList = skipList;
+        this.bLoader = bLoader;
+        this.quote = quote;
+        this.escape = escape;
+        this.maxCharsPerColumn = maxCharsPerColumn;
+        initPmap(inDateFormatString, inBoolStyle, inLocale, bLoader);
+        String schemaString = parseCqlSchema(inCqlSchema);
+        partitionKey = new ArrayList<>(inPartitionKey);
+        sbl = schemaBits(schemaString.split(","), inTypes);
+        createDelimParser(inDelimiter, inNullString, skipList, quote, escape, maxCharsPerColumn);
+    }
+
+    // Copies the resolved schema of another parser, but with fresh Parser
+    // instances - no round-trip to the cluster
+    private CqlDelimParser(CqlDelimParser other) throws ParseException {
+        delimiter = other.delimiter;
+        nullString = other.nullString;
+        dateFormatString = other.dateFormatString;
+        boolStyle = other.boolStyle;
+        locale = other.locale;
+        skipList = other.skipList;
+        bLoader = other.bLoader;
+        quote = other.quote;
+        escape = other.escape;
+        maxCharsPerColumn = other.maxCharsPerColumn;
+        keyspace = other.keyspace;
+        tablename = other.tablename;
+        partitionKey = other.partitionKey;
+        initPmap(dateFormatString, boolStyle, locale, bLoader);
+        sbl = new ArrayList<>();
+        for (int i = 0; i < other.sbl.size(); i++) {
+            SchemaBits sb = new SchemaBits();
+            sb.name = other.sbl.get(i).name;
+            sb.type = other.sbl.get(i).type;
+            sb.datatype = other.sbl.get(i).datatype;
+            sb.parser = createParser(sb.type, i);
+            sbl.add(sb);
+        }
+        createDelimParser(delimiter, nullString, skipList, quote, escape, maxCharsPerColumn);
+        setTextDictionary(other.textDictionary);
+    }
+
+    // The Parsers (and the DelimParser) keep state and are not thread-safe,
+    // so every thread needs its own copy.  The schema is only resolved once.
+    public CqlDelimParser duplicate() throws ParseException {
+        return new CqlDelimParser(this);
+    }
+
     // intialize the Parsers and the parser map
     private void initPmap(String dateFormatString, BooleanParser.BoolStyle inBoolStyle,
                           Locale inLocale, boolean bLoader) {
@@ -93,6 +183,12 @@ public class CqlDelimParser {
 
     // Validate the CQL schema, extract the keyspace and tablename, and process the rest of the schema
     private void processCqlSchema(String cqlSchema, Session session) throws ParseException {
+        sbl = schemaBits(parseCqlSchema(cqlSchema), session);
+    }
+
+    // Validate the CQL schema and extract the keyspace and tablename.
+    // Returns the column list.
+    private String parseCqlSchema(String cqlSchema) throws ParseException {
         String kstnRegex = "^\\s*(\\\"?[A-Za-z0-9_]+\\\"?)\\.(\\\"?[A-Za-z0-9_]+\\\"?)\\s*[\\(]\\s*(\\\"?[A-Za-z0-9_]+\\\"?\\s*(,\\s*\\\"?[A-Za-z0-9_]+\\\"?\\s*)*)[\\)]\\s*$";
         Pattern p = Pattern.compile(kstnRegex);
         Matcher m = p.matcher(cqlSchema);
@@ -101,77 +197,100 @@ public class CqlDelimParser {
         }
         keyspace = m.group(1);
         tablename = m.group(2);
-        String schemaString = m.group(3);
-        sbl = schemaBits(schemaString, session);
+        return m.group(3);
     }
 
+    // Resolve the column types from the cluster metadata.  The driver
+    // lower-cases unquoted identifiers and strips the quotes from quoted
+    // ones, so the names are handed over exactly as written in the schema.
     private List<SchemaBits> schemaBits(String in, Session session) throws ParseException {
-        String query = "SELECT " + in + " FROM " + keyspace + "." + tablename + " LIMIT 1";
-        ColumnDefinitions cd = session.execute(query).getColumnDefinitions();
+        Metadata metadata = session.getCluster().getMetadata();
+        KeyspaceMetadata ksm = metadata.getKeyspace(keyspace);
+        if (null == ksm) {
+            throw new ParseException("Keyspace not found (" + keyspace + ")", 0);
+        }
+        TableMetadata tm = ksm.getTable(tablename);
+        if (null == tm) {
+            throw new ParseException("Table not found (" + keyspace + "." + tablename + ")", 0);
+        }
+        partitionKey = new ArrayList<>();
+        for (ColumnMetadata cm : tm.getPartitionKey())
+            partitionKey.add(Metadata.quote(cm.getName()));
+
         String[] inList = in.split(",");
-        List<SchemaBits> sbl = new ArrayList<>();
+        List<DataType> types = new ArrayList<>();
         for (int i = 0; i < inList.length; i++) {
             String col = inList[i].trim();
+            ColumnMetadata cm = tm.getColumn(col);
+            if (null == cm) {
+                throw new ParseException("Column not found (" + col + ")", i);
+            }
+            types.add(cm.getType());
+        }
+        return schemaBits(inList, types);
+    }
+
+    private List<SchemaBits> schemaBits(String[] inList, List<DataType> types) throws ParseException {
+        if (inList.length != types.size()) {
+            throw new ParseException("Schema has " + inList.length + " columns, but "
+                    + types.size() + " types were given", 0);
+        }
+        List<SchemaBits> sbl = new ArrayList<>();
+        for (int i = 0; i < inList.length; i++) {
             SchemaBits sb = new SchemaBits();
-            DataType dt = cd.getType(col);
-            sb.name = col;
+            DataType dt = types.get(i);
+            sb.name = inList[i].trim();
+            sb.type = dt;
             sb.datatype = dt.getName();
-            if (dt.isCollection()) {
-                if (sb.datatype == DataType.Name.LIST) {
-                    DataType.Name listType = dt.getTypeArguments().get(0).getName();
-                    Parser listParser = pmap.get(listType);
-                    if (null == listParser) {
-                        throw new ParseException("List data type not recognized ("
-                                + listType + ")", i);
-                    }
-                    sb.parser = new ListParser(listParser, ',', '[', ']');
-                } else if (sb.datatype == DataType.Name.SET) {
-                    DataType.Name setType = dt.getTypeArguments().get(0).getName();
-                    Parser setParser = pmap.get(setType);
-                    if (null == setParser) {
-                        throw new ParseException("Set data type not recognized ("
-                                + setType + ")", i);
-                    }
-                    sb.parser = new SetParser(setParser, ',', '{', '}');
-                } else if (sb.datatype == DataType.Name.MAP) {
-                    DataType.Name keyType = dt.getTypeArguments().get(0).getName();
-                    Parser keyParser = pmap.get(keyType);
-                    if (null == keyParser) {
-                        throw new ParseException("Map key data type not recognized ("
-                                + keyType + ")", i);
-                    }
-                    DataType.Name valueType = dt.getTypeArguments().get(1).getName();
-                    Parser valueParser = pmap.get(valueType);
-                    if (null == valueParser) {
-                        throw new ParseException("Map value data type not recognized ("
-                                + valueType + ")", i);
-                    }
-                    sb.parser = new MapParser(keyParser, valueParser, ',', '{', '}', ':');
-                } else {
-                    throw new ParseException("Collection data type not recognized ("
-                            + sb.datatype + ")", i);
-                }
-            } else {
-                sb.parser = pmap.get(sb.datatype);
-                if (null == sb.parser) {
-                    throw new ParseException("Column data type not recognized (" + sb.datatype + ")", i);
-                }
-            }
+            sb.parser = createParser(dt, i);
             sbl.add(sb);
         }
         return sbl;
     }
 
-    // Creates the DelimParser that will parse the line
-    private void createDelimParser(String delimiter, String nullString,
-                                   String skipList) throws NumberFormatException {
-        delimParser = new DelimParser(delimiter, nullString);
-        for (SchemaBits aSbl : sbl) delimParser.add(aSbl.parser);
-        if (null != skipList) {
-            for (String s : skipList.split(",")) {
-                delimParser.addSkip(Integer.parseInt(s.trim()));
+    private Parser createParser(DataType dt, int i) throws ParseException {
+        DataType.Name datatype = dt.getName();
+        if (dt.isCollection()) {
+            if (datatype == DataType.Name.LIST) {
+                DataType.Name listType = dt.getTypeArguments().get(0).getName();
+                Parser listParser = pmap.get(listType);
+                if (null == listParser) {
+                    throw new ParseException("List data type not recognized ("
+                            + listType + ")", i);
+                }
+                return new ListParser(listParser, ',', '[', ']');
+            } else if (datatype == DataType.Name.SET) {
+                DataType.Name setType = dt.getTypeArguments().get(0).getName();
+                Parser setParser = pmap.get(setType);
+                if (null == setParser) {
+                    throw new ParseException("Set data type not recognized ("
+                            + setType + ")", i);
+                }
+                return new SetParser(setParser, ',', '{', '}');
+            } else if (datatype == DataType.Name.MAP) {
+                DataType.Name keyType = dt.getTypeArguments().get(0).getName();
+                Parser keyParser = pmap.get(keyType);
+                if (null == keyParser) {
+                    throw new ParseException("Map key data type not recognized ("
+                            + keyType + ")", i);
+                }
+                DataType.Name valueType = dt.getTypeArguments().get(1).getName();
+                Parser valueParser = pmap.get(valueType);
+                if (null == valueParser) {
+                    throw new ParseException("Map value data type not recognized ("
+                            + valueType + ")", i);
+                }
+                return new MapParser(keyParser, valueParser, ',', '{', '}', ':');
+            } else {
+                throw new ParseException("Collection data type not recognized ("
+                        + datatype + ")", i);
             }
         }
+        Parser parser = pmap.get(datatype);
+        if (null == parser) {
+            throw new ParseException("Column data type not recognized (" + datatype + ")", i);
+        }
+        return parser;
     }
 
     // Creates the DelimParser that will parse the line
@@ -199,10 +318,17 @@ public class CqlDelimParser {
     }
 
     public String generateSelect() {
+        return generateSelect(null);
+    }
+
+    // extraColumn (e.g. a Token() call) is selected after the schema columns
+    public String generateSelect(String extraColumn) {
         String select = "SELECT " + sbl.get(0).name;
         for (int i = 1; i < sbl.size(); i++) {
             select = select + ", " + sbl.get(i).name;
         }
+        if (null != extraColumn)
+            select = select + ", " + extraColumn;
         select += " FROM " + keyspace + "." + tablename;
         return select;
     }
@@ -215,18 +341,86 @@ public class CqlDelimParser {
         return tablename;
     }
 
+    // Comma-separated, quoted partition key columns - e.g., for Token(...)
+    public String getPartitionKey() {
+        String ret = partitionKey.get(0);
+        for (int i = 1; i < partitionKey.size(); i++)
+            ret = ret + "," + partitionKey.get(i);
+        return ret;
+    }
+
+    // Column names as written in the schema
+    public List<String> getColumnNames() {
+        List<String> names = new ArrayList<>();
+        for (SchemaBits sb : sbl)
+            names.add(sb.name);
+        return names;
+    }
+
+    public List<DataType> getColumnTypes() {
+        List<DataType> types = new ArrayList<>();
+        for (SchemaBits sb : sbl)
+            types.add(sb.type);
+        return types;
+    }
+
     // Pass through to parse the line - the DelimParser we created will be used.
     public List<Object> parse(String line) {
         return delimParser.parse(line);
     }
 
+    // Gives every text column a dictionary of up to maxSize values, see
+    // ValueDictionary.  0 removes them.
+    public void setTextDictionary(int maxSize) {
+        if (maxSize == textDictionary)
+            return;
+        binder = null;
+        textDictionary = maxSize;
+        for (int i = 0; i < sbl.size(); i++) {
+            DataType.Name name = sbl.get(i).type.getName();
+            if ((DataType.Name.TEXT == name) || (DataType.Name.VARCHAR == name)
+                    || (DataType.Name.ASCII == name))
+                delimParser.setDictionary(i, maxSize);
+        }
+    }
+
+    // A RowBinder for inStatement, or null if its bind markers are not
+    // the columns of this schema, with the same types
+    public RowBinder binder(PreparedStatement inStatement, boolean inNullsUnset) {
+        List<DataType> types = new ArrayList<>();
+        for (ColumnDefinitions.Definition d : inStatement.getVariables())
+            types.add(d.getType());
+        if (!types.equals(getColumnTypes()))
+            return null;
+        // tasks that share this parser share its binder
+        if ((null == binder) || (binderStatement != inStatement) || (binderNullsUnset != inNullsUnset)) {
+            binder = delimParser.binder(inStatement, inNullsUnset);
+            binderStatement = inStatement;
+            binderNullsUnset = inNullsUnset;
+        }
+        return binder;
+    }
+
+    public String getErrorType() {
+        return delimParser.getErrorType();
+    }
+
+    public String getErrorMessage() {
+        return delimParser.getErrorMessage();
+    }
+
     public String format(Row row) throws IndexOutOfBoundsException, InvalidTypeException {
         return delimParser.format(row);
     }
 
+    public String format(List<Object> values) {
+        return delimParser.format(values);
+    }
+
     // used internally to store schema information
     private class SchemaBits {
         public String name;
+        public DataType type;
         public DataType.Name datatype;
         public Parser parser;
     }
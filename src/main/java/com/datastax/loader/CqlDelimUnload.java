@@ -17,11 +17,13 @@ package com.datastax.loader;
 
 import com.datastax.driver.core.*;
 import com.datastax.driver.core.exceptions.QueryValidationException;
-import com.datastax.loader.parser.BooleanParser;
+import com.datastax.loader.util.MeteredOutputStream;
 
 import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.math.BigInteger;
 import java.security.KeyManagementException;
@@ -32,12 +34,18 @@ import java.security.cert.CertificateException;
 import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 
 public class CqlDelimUnload extends ConfigurationLoader {
+    private static final String STDOUT = "stdout";
+    private static final String CHECKPOINT = ".CHECKPOINT";
     private String beginToken = "-9223372036854775808";
     private String endToken = "9223372036854775807";
     private String where = null;
+    private double rate = Double.MAX_VALUE;
+    private RateLimiter rateLimiter = null;
+    private LoaderControl control = null;
 
     public static void main(String[] args)
             throws IOException, ParseException, InterruptedException, ExecutionException,
@@ -61,6 +69,7 @@ public class CqlDelimUnload extends ConfigurationLoader {
         usage.append("  -beginToken <tokenString>      Begin token [none]\n");
         usage.append("  -endToken <tokenString>        End token [none]\n");
         usage.append("  -where <predicate>             WHERE clause [none]\n");
+        usage.append("  -rate <rows-per-second>        Maximum unload rate [unlimited]\n");
         return usage.toString();
     }
 
@@ -75,18 +84,24 @@ public class CqlDelimUnload extends ConfigurationLoader {
             System.err.println("If you supply the endToken then you need to specify the beginToken");
             return false;
         }
+        if (0 >= rate) {
+            System.err.println("Rate must be positive");
+            return false;
+        }
 
         return true;
     }
 
 
     protected boolean parseArgsFromMap(Map<String, String> amap) {
-        super.parseArgsFromMap(amap);
+        if (!super.parseArgsFromMap(amap))
+            return false;
 
         String tkey;
         if (null != (tkey = amap.remove("-beginToken"))) beginToken = tkey;
         if (null != (tkey = amap.remove("-endToken"))) endToken = tkey;
         if (null != (tkey = amap.remove("-where"))) where = tkey;
+        if (null != (tkey = amap.remove("-rate"))) rate = Double.parseDouble(tkey);
 
         return true;
     }
@@ -96,6 +111,28 @@ public class CqlDelimUnload extends ConfigurationLoader {
         return 4;
     }
 
+    @Override
+    protected Session getSession(Cluster cluster) throws FileNotFoundException {
+        return attach(super.getSession(cluster));
+    }
+
+    // Sets up the rate limiter and the control around a connected session
+    Session attach(Session tsession) {
+        rateLimiter = new RateLimiter(rate, 0, null, null);
+        control = new LoaderControl(rateLimiter, null);
+        control.register("CqlDelimUnload");
+        return tsession;
+    }
+
+    @Override
+    protected void cleanup() {
+        super.cleanup();
+        if (null != control)
+            control.unregister();
+        if (null != rateLimiter)
+            rateLimiter.close();
+    }
+
     public boolean run(String[] args)
             throws IOException, InterruptedException, ExecutionException,
             KeyStoreException, NoSuchAlgorithmException, KeyManagementException,
@@ -111,30 +148,41 @@ public class CqlDelimUnload extends ConfigurationLoader {
             return false;
 
         PrintStream pstream = null;
+        String outputName = filename;
         if (1 == numThreads) {
-            if (filename.equalsIgnoreCase("stdout")) {
-                pstream = System.out;
+            if (filename.equalsIgnoreCase(STDOUT)) {
+                pstream = output(System.out);
             } else {
-                pstream = new PrintStream(new BufferedOutputStream(new FileOutputStream(filename + ".0")));
+                outputName = filename + ".0";
+                pstream = output(new FileOutputStream(outputName));
             }
             beginToken = null;
             endToken = null;
         }
 
+        // Resolve the schema and prepare the SELECT once - all threads share it
+        CqlDelimParser cdp;
+        try {
+            cdp = new CqlDelimParser(cqlSchema, delimiter, nullString,
+                    dateFormatString, boolStyle, locale, null, session, false);
+        } catch (ParseException pe) {
+            System.err.println("Error parsing schema: " + pe.getMessage());
+            return false;
+        }
+        PreparedStatement statement = prepareSelect(cdp);
+        if (null == statement)
+            return false;
+
         // Launch Threads
         ExecutorService executor;
         long total = 0;
         if (null != pstream) {
             // One file/stdin to process
             executor = Executors.newSingleThreadExecutor();
-            Callable<Long> worker = new ThreadExecute(cqlSchema, delimiter,
-                    nullString,
-                    dateFormatString,
-                    boolStyle, locale,
-                    pstream,
+            Callable<Long> worker = new ThreadExecute(cdp, statement,
+                    pstream, outputName,
                     beginToken,
-                    endToken, session,
-                    consistencyLevel, where);
+                    endToken, session);
             Future<Long> res = executor.submit(worker);
             total = res.get();
             executor.shutdown();
@@ -172,16 +220,17 @@ public class CqlDelimUnload extends ConfigurationLoader {
             for (int mype = 0; mype < numThreads; mype++) {
                 String tBeginString = beginList.get(mype);
                 String tEndString = endList.get(mype);
-                pstream = new PrintStream(new BufferedOutputStream(new FileOutputStream(filename + "." + mype)));
-                Callable<Long> worker = new ThreadExecute(cqlSchema, delimiter,
-                        nullString,
-                        dateFormatString,
-                        boolStyle, locale,
-                        pstream,
-                        tBeginString,
-                        tEndString, session,
-                        consistencyLevel,
-                        where);
+                pstream = output(new FileOutputStream(filename + "." + mype));
+                Callable<Long> worker;
+                try {
+                    worker = new ThreadExecute(cdp.duplicate(), statement,
+                            pstream, filename + "." + mype,
+                            tBeginString,
+                            tEndString, session);
+                } catch (ParseException pe) {
+                    System.err.println("Error parsing schema: " + pe.getMessage());
+                    return false;
+                }
                 results.add(executor.submit(worker));
             }
             executor.shutdown();
@@ -196,121 +245,264 @@ public class CqlDelimUnload extends ConfigurationLoader {
         return true;
     }
 
+    // Library use: unloads through the caller's session, one line at a
+    // time to the sink
+    private LoaderStats unload(Consumer<String> sink, String name)
+            throws IOException, ParseException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            // one sink, so one thread and no token ranges
+            beginToken = null;
+            endToken = null;
+            CqlDelimParser cdp = new CqlDelimParser(cqlSchema, delimiter, nullString,
+                    dateFormatString, boolStyle, locale, null, session, false);
+            PreparedStatement statement = prepareSelect(cdp);
+            if (null == statement)
+                throw new IllegalArgumentException("Could not prepare the SELECT for " + cqlSchema);
+            long rows = new ThreadExecute(cdp, statement, sink, name,
+                    null, null, session).call();
+            return new LoaderStats(true, rows, 0, 0, 0, System.currentTimeMillis() - start);
+        } finally {
+            cleanup();
+        }
+    }
+
+    public static Builder builder(Session inSession) {
+        return new Builder(inSession);
+    }
+
+    // Unloads to a stream or a consumer through an existing session,
+    // without touching System.exit or closing the session:
+    //   CqlDelimUnload.builder(session).schema("ks.t(a, b)")
+    //           .option("-where", "a = 1").to(out).start()
+    // Options are the command line options, e.g. -delim, -where, -rate;
+    // -host, -f, -numThreads and the token range options do not apply.
+    public static class Builder {
+        private final Session session;
+        private final Map<String, String> options = new HashMap<>();
+        private String schema = null;
+        private Consumer<String> sink = null;
+        private OutputStream out = null;
+        private String name = "stream";
+        private Executor executor = null;
+
+        private Builder(Session inSession) {
+            session = inSession;
+        }
+
+        public Builder schema(String inSchema) {
+            schema = inSchema;
+            return this;
+        }
+
+        public Builder option(String inName, String inValue) {
+            options.put(inName, inValue);
+            return this;
+        }
+
+        // Flushed, but not closed, when the unload is done
+        public Builder to(OutputStream inStream) {
+            out = inStream;
+            sink = null;
+            return this;
+        }
+
+        // Called with one line per row, from a single thread
+        public Builder to(Consumer<String> inSink) {
+            out = null;
+            sink = inSink;
+            return this;
+        }
+
+        // Names the output in the messages and a drain checkpoint [stream]
+        public Builder name(String inName) {
+            name = inName;
+            return this;
+        }
+
+        // Where to run the unload [a new thread]
+        public Builder executor(Executor inExecutor) {
+            executor = inExecutor;
+            return this;
+        }
+
+        public CompletionStage<LoaderStats> start() {
+            if ((null == schema) || ((null == sink) && (null == out)))
+                throw new IllegalStateException("schema and output are required");
+            CqlDelimUnload cdu = new CqlDelimUnload();
+            cdu.ownsSession = false;
+            if (!cdu.parseOptions(schema, STDOUT, options))
+                throw new IllegalArgumentException("Bad options: " + options);
+            cdu.session = cdu.attach(session);
+            Executor tExecutor = (null != executor) ? executor : r -> {
+                Thread t = new Thread(r, "cqldelimunload-" + name);
+                t.setDaemon(true);
+                t.start();
+            };
+            final PrintStream tStream = (null == out) ? null : cdu.output(out);
+            final Consumer<String> tSink = (null == out) ? sink : tStream::println;
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return cdu.unload(tSink, name);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                } finally {
+                    if (null != tStream)
+                        tStream.flush();
+                }
+            }, tExecutor);
+        }
+    }
+
+    // bytes.written counts what reaches out, as encoded
+    private PrintStream output(OutputStream out) {
+        return new PrintStream(new BufferedOutputStream(
+                new MeteredOutputStream(out, metrics.getBytesWritten())));
+    }
+
+    // The token range is left as bind markers so that one PreparedStatement
+    // serves every thread.  The token of each row is selected as an extra
+    // last column (not written out) so that a drain can checkpoint it.
+    private PreparedStatement prepareSelect(CqlDelimParser cdp) {
+        String partitionKey = cdp.getPartitionKey();
+        String select;
+        if (null != beginToken) {
+            select = cdp.generateSelect("Token(" + partitionKey + ")");
+            select = select + " WHERE Token(" + partitionKey + ") > ?"
+                    + " AND Token(" + partitionKey + ") <= ?";
+            if (null != where)
+                select = select + " AND " + where;
+        } else {
+            select = cdp.generateSelect();
+            if (null != where)
+                select = select + " WHERE " + where;
+        }
+        PreparedStatement statement;
+        try {
+            statement = session.prepare(select);
+        } catch (QueryValidationException iqe) {
+            System.err.println("Error creating statement: " + iqe.getMessage());
+            System.err.println("CQL Query: " + select);
+            if (null != where)
+                System.err.println("Check your syntax for -where: " + where);
+            return null;
+        }
+        statement.setConsistencyLevel(consistencyLevel);
+        return statement;
+    }
+
     class ThreadExecute implements Callable<Long> {
         private final Session session;
-        private final ConsistencyLevel consistencyLevel;
-        private final String cqlSchema;
-        private PreparedStatement statement;
-        private CqlDelimParser cdp;
-        private Locale locale = null;
-        private BooleanParser.BoolStyle boolStyle = null;
-        private String nullString = null;
-        private String delimiter = null;
+        private final PreparedStatement statement;
+        private final CqlDelimParser cdp;
+        private final String outputName;
 
         private PrintStream writer = null;
+        private final Consumer<String> sink;
         private String beginToken = null;
         private String endToken = null;
         private long numRead = 0;
-        private String where = null;
-
-        public ThreadExecute(String inCqlSchema, String inDelimiter,
-                             String inNullString,
-                             String inDateFormatString,
-                             BooleanParser.BoolStyle inBoolStyle,
-                             Locale inLocale,
-                             PrintStream inWriter,
+
+        public ThreadExecute(CqlDelimParser inCdp,
+                             PreparedStatement inStatement,
+                             PrintStream inWriter, String inOutputName,
                              String inBeginToken, String inEndToken,
-                             Session inSession, ConsistencyLevel inConsistencyLevel,
-                             String inWhere) {
+                             Session inSession) {
             super();
-            cqlSchema = inCqlSchema;
-            delimiter = inDelimiter;
-            nullString = inNullString;
-            dateFormatString = inDateFormatString;
-            boolStyle = inBoolStyle;
-            locale = inLocale;
+            cdp = inCdp;
+            statement = inStatement;
+            outputName = inOutputName;
             beginToken = inBeginToken;
             endToken = inEndToken;
             session = inSession;
             writer = inWriter;
-            consistencyLevel = inConsistencyLevel;
-            where = inWhere;
+            sink = inWriter::println;
         }
 
-        public Long call() throws IOException, ParseException {
-            if (!setup()) {
-                return 0L;
-            }
+        // Hands the lines to a sink the caller owns - it is not closed
+        public ThreadExecute(CqlDelimParser inCdp,
+                             PreparedStatement inStatement,
+                             Consumer<String> inSink, String inOutputName,
+                             String inBeginToken, String inEndToken,
+                             Session inSession) {
+            super();
+            cdp = inCdp;
+            statement = inStatement;
+            outputName = inOutputName;
+            beginToken = inBeginToken;
+            endToken = inEndToken;
+            session = inSession;
+            sink = inSink;
+        }
+
+        public Long call() throws IOException, ParseException, InterruptedException {
             numRead = execute();
             cleanup();
             return numRead;
         }
 
-        private String getPartitionKey(CqlDelimParser cdp, Session session) {
-            String keyspace = cdp.getKeyspace();
-            String table = cdp.getTable();
-            if (keyspace.startsWith("\"") && keyspace.endsWith("\""))
-                keyspace = keyspace.replaceAll("\"", "");
-            else
-                keyspace = keyspace.toLowerCase();
-            if (table.startsWith("\"") && table.endsWith("\""))
-                table = table.replaceAll("\"", "");
-            else
-                table = table.toLowerCase();
-
-            List<ColumnMetadata> lcm = session.getCluster().getMetadata()
-                    .getKeyspace(keyspace).getTable(table).getPartitionKey();
-            String partitionKey = lcm.get(0).getName();
-            for (int i = 1; i < lcm.size(); i++) {
-                partitionKey = partitionKey + "," + lcm.get(i).getName();
-            }
-            return partitionKey;
-        }
-
-        private boolean setup() throws ParseException {
-            cdp = new CqlDelimParser(cqlSchema, delimiter, nullString,
-                    dateFormatString,
-                    boolStyle, locale, null, session, false);
-            String select = cdp.generateSelect();
-            String partitionKey = getPartitionKey(cdp, session);
-            if (null != beginToken) {
-                select = select + " WHERE Token(" + partitionKey + ") > "
-                        + beginToken + " AND Token(" + partitionKey + ") <= "
-                        + endToken;
-                if (null != where)
-                    select = select + " AND " + where;
-            } else {
-                if (null != where)
-                    select = select + " WHERE " + where;
-            }
-            try {
-                statement = session.prepare(select);
-            } catch (QueryValidationException iqe) {
-                System.err.println("Error creating statement: " + iqe.getMessage());
-                System.err.println("CQL Query: " + select);
-                if (null != where)
-                    System.err.println("Check your syntax for -where: " + where);
-                return false;
-            }
-            statement.setConsistencyLevel(consistencyLevel);
-            return true;
-        }
-
         private void cleanup() {
+            if (null == writer)
+                return;
             writer.flush();
             writer.close();
         }
 
-        private long execute() {
+        private long execute() throws IOException, InterruptedException {
             BoundStatement bound = statement.bind();
+            if (null != beginToken) {
+                Metadata metadata = session.getCluster().getMetadata();
+                bound.setToken(0, metadata.newToken(beginToken));
+                bound.setToken(1, metadata.newToken(endToken));
+            }
             ResultSet rs = session.execute(bound);
+            metrics.getUnloadPages().inc();
+            int tokenIndex = rs.getColumnDefinitions().size() - 1;
+            Token lastToken = null;
             numRead = 0;
             for (Row row : rs) {
-                writer.println(cdp.format(row));
+                control.awaitResumed();
+                if (control.isDraining()) {
+                    // finish the current partition, so the rest of the
+                    // range can be resumed after its token
+                    if ((null == beginToken) || (null == lastToken)
+                            || !lastToken.equals(row.getToken(tokenIndex))) {
+                        checkpoint(lastToken);
+                        return numRead;
+                    }
+                }
+                rateLimiter.acquire();
+                String line = cdp.format(row);
+                sink.accept(line);
+                metrics.getUnloadRows().mark();
+                if (null != beginToken)
+                    lastToken = row.getToken(tokenIndex);
                 numRead++;
+                // the next row comes with a new page
+                if ((0 == rs.getAvailableWithoutFetching()) && !rs.isFullyFetched())
+                    metrics.getUnloadPages().inc();
             }
             return numRead;
         }
+
+        private void checkpoint(Token lastToken) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            sb.append("output: ").append(outputName).append("\n");
+            sb.append("rowsUnloaded: ").append(numRead).append("\n");
+            if (null != beginToken) {
+                String resumeToken = (null == lastToken) ? beginToken : lastToken.toString();
+                sb.append("resume: -beginToken ").append(resumeToken)
+                        .append(" -endToken ").append(endToken).append("\n");
+            }
+            if (STDOUT.equalsIgnoreCase(outputName)) {
+                System.err.println("*** DRAINED: " + outputName + "\n" + sb);
+            } else {
+                String fname = outputName + CHECKPOINT;
+                try (PrintStream ps = new PrintStream(new FileOutputStream(fname))) {
+                    ps.print(sb);
+                }
+                System.err.println("*** DRAINED: " + outputName + "  checkpoint in " + fname);
+            }
+        }
     }
 }
-
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Watches a directory and hands out files once they are complete.
+// A file is complete when either its ready marker (<file><readyMarker>)
+// exists, or - without a marker - its size and modification time have
+// not changed for stableMillis.  A file that is handed out is remembered
+// with its modification time, so it is only handed out again if it is
+// rewritten, and forgotten once it is gone from the directory.
+class DirectoryWatcher {
+    // how often the files handed out are checked for being gone, in case
+    // the delete event was lost
+    private static final long SWEEP_MILLIS = 60000;
+    private final Path dir;
+    private final PathMatcher matcher;
+    private final long stableMillis;
+    private final String readyMarker;
+    private final Map<Path, FileState> pending = new HashMap<>();
+    // modification time when handed out
+    private final Map<Path, Long> dispatched = new HashMap<>();
+    private volatile boolean running = true;
+
+    public DirectoryWatcher(Path inDir, PathMatcher inMatcher,
+                            long inStableMillis, String inReadyMarker) {
+        dir = inDir;
+        matcher = inMatcher;
+        stableMillis = inStableMillis;
+        readyMarker = inReadyMarker;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    // Blocks until stop() is called
+    public void watch(Consumer<File> onReady) throws IOException, InterruptedException {
+        long pollMillis = Math.max(100, Math.min(stableMillis, 1000));
+        try (WatchService watchService = dir.getFileSystem().newWatchService()) {
+            dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            scan();
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (null != key) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (OVERFLOW == event.kind()) {
+                            scan();
+                            continue;
+                        }
+                        Path path = dir.resolve((Path) event.context());
+                        if (ENTRY_DELETE == event.kind()) {
+                            pending.remove(path);
+                            dispatched.remove(path);
+                        } else {
+                            offer(path);
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.err.println("Directory " + dir + " is no longer accessible");
+                        return;
+                    }
+                }
+                dispatchReady(onReady);
+                if (System.currentTimeMillis() - lastSweep >= SWEEP_MILLIS) {
+                    dispatched.keySet().removeIf(path -> !Files.exists(path));
+                    lastSweep = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    private void scan() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream)
+                offer(path);
+        }
+    }
+
+    private void offer(Path path) {
+        if (null != readyMarker && path.getFileName().toString().endsWith(readyMarker)) {
+            String name = path.getFileName().toString();
+            path = path.resolveSibling(name.substring(0, name.length() - readyMarker.length()));
+        }
+        if (pending.containsKey(path) || Files.isDirectory(path))
+            return;
+        Long modified = dispatched.get(path);
+        if (null != modified) {
+            // the same file, or one written anew under the same name
+            if (modified == path.toFile().lastModified())
+                return;
+            dispatched.remove(path);
+        }
+        if (null != matcher && !matcher.matches(path.getFileName()))
+            return;
+        pending.put(path, new FileState());
+    }
+
+    private void dispatchReady(Consumer<File> onReady) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, FileState>> iter = pending.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Path, FileState> me = iter.next();
+            Path path = me.getKey();
+            File file = path.toFile();
+            if (!file.isFile()) {
+                // gone, or a directory - a ready marker may come first,
+                // though
+                if (file.isDirectory() || (null == readyMarker) || !Files.exists(markerFor(path)))
+                    iter.remove();
+                continue;
+            }
+            if (!isComplete(path, me.getValue(), now))
+                continue;
+            iter.remove();
+            dispatched.put(path, file.lastModified());
+            if (null != readyMarker) {
+                try {
+                    Files.deleteIfExists(markerFor(path));
+                } catch (IOException ioe) {
+                    System.err.println("Could not remove ready marker for " + path + ": " + ioe.getMessage());
+                }
+            }
+            onReady.accept(file);
+        }
+    }
+
+    private boolean isComplete(Path path, FileState state, long now) {
+        if (null != readyMarker)
+            return Files.exists(markerFor(path));
+        File file = path.toFile();
+        long size = file.length();
+        long modified = file.lastModified();
+        if ((size != state.size) || (modified != state.modified)) {
+            state.size = size;
+            state.modified = modified;
+            state.lastChange = now;
+            return false;
+        }
+        return now - state.lastChange >= stableMillis;
+    }
+
+    private Path markerFor(Path path) {
+        return path.resolveSibling(path.getFileName().toString() + readyMarker);
+    }
+
+    private static class FileState {
+        long size = -1;
+        long modified = -1;
+        long lastChange = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A range of whole lines of an input file.  Files larger than the split
+// size are cut into several splits at line boundaries, so that the worker
+// threads can share a large file.  The file is only moved to the success
+// or failure directory once all of its splits are done, and -maxErrors
+// and -maxInsertErrors count the errors of all of its splits.
+class FileSplit {
+    private final File file;
+    private final long start;
+    private final long end;
+    private final int index;
+    private final int numSplits;
+    private final AtomicInteger remaining;
+    private final AtomicBoolean failed;
+    private final AtomicLong parseErrors;
+    private final AtomicLong insertErrors;
+
+    private FileSplit(File inFile, long inStart, long inEnd, int inIndex,
+                      int inNumSplits, AtomicInteger inRemaining,
+                      AtomicBoolean inFailed, AtomicLong inParseErrors,
+                      AtomicLong inInsertErrors) {
+        file = inFile;
+        start = inStart;
+        end = inEnd;
+        index = inIndex;
+        numSplits = inNumSplits;
+        remaining = inRemaining;
+        failed = inFailed;
+        parseErrors = inParseErrors;
+        insertErrors = inInsertErrors;
+    }
+
+    // Split the files and order the splits largest-first, so the long
+    // running ones start early and the small ones fill in at the end
+    public static List<FileSplit> plan(List<File> files, long splitSize) throws IOException {
+        List<FileSplit> splits = new ArrayList<>();
+        for (File file : files) {
+            long length = file.length();
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(0L);
+            if ((splitSize > 0) && (length > splitSize)) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    long pos = splitSize;
+                    while (pos < length) {
+                        long lineStart = nextLineStart(raf, pos);
+                        if (lineStart >= length)
+                            break;
+                        bounds.add(lineStart);
+                        pos = lineStart + splitSize;
+                    }
+                }
+            }
+            bounds.add(length);
+            int numSplits = bounds.size() - 1;
+            AtomicInteger remaining = new AtomicInteger(numSplits);
+            AtomicBoolean failed = new AtomicBoolean(false);
+            AtomicLong parseErrors = new AtomicLong(0);
+            AtomicLong insertErrors = new AtomicLong(0);
+            for (int i = 0; i < numSplits; i++)
+                splits.add(new FileSplit(file, bounds.get(i), bounds.get(i + 1),
+                        i, numSplits, remaining, failed, parseErrors, insertErrors));
+        }
+        splits.sort((s1, s2) -> Long.compare(s2.length(), s1.length()));
+        return splits;
+    }
+
+    private static long nextLineStart(RandomAccessFile raf, long pos) throws IOException {
+        raf.seek(pos - 1);
+        int b;
+        while ((b = raf.read()) >= 0) {
+            if ('\n' == b)
+                break;
+        }
+        return raf.getFilePointer();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isWholeFile() {
+        return 1 == numSplits;
+    }
+
+    public long length() {
+        return end - start;
+    }
+
+    // Counts a parse error and returns those of the whole file
+    public long addParseError() {
+        return parseErrors.incrementAndGet();
+    }
+
+    public long getParseErrors() {
+        return parseErrors.get();
+    }
+
+    // The insert error count the splits of the file share
+    public AtomicLong getInsertErrors() {
+        return insertErrors;
+    }
+
+    // Returns true if this was the last split of the file to finish
+    public boolean complete(boolean success) {
+        if (!success)
+            failed.set(true);
+        return 0 == remaining.decrementAndGet();
+    }
+
+    public boolean succeeded() {
+        return !failed.get();
+    }
+}
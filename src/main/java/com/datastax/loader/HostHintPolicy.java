@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.loader.futures.HostThrottle;
+import com.google.common.collect.AbstractIterator;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+// Tries the host picked by the HostThrottle first, so the per-host
+// accounting matches where the request actually goes.  Without a hint
+// it behaves exactly like the child policy.
+class HostHintPolicy implements ChainableLoadBalancingPolicy {
+    private final LoadBalancingPolicy childPolicy;
+
+    public HostHintPolicy(LoadBalancingPolicy inChildPolicy) {
+        childPolicy = inChildPolicy;
+    }
+
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        childPolicy.init(cluster, hosts);
+    }
+
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        final Host hinted = HostThrottle.hintedHost();
+        final Iterator<Host> childPlan = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        if ((null == hinted) || !hinted.isUp())
+            return childPlan;
+        return new AbstractIterator<Host>() {
+            private boolean first = true;
+
+            @Override
+            protected Host computeNext() {
+                if (first) {
+                    first = false;
+                    return hinted;
+                }
+                while (childPlan.hasNext()) {
+                    Host host = childPlan.next();
+                    if (!hinted.equals(host))
+                        return host;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    public void onUp(Host host) {
+        childPolicy.onUp(host);
+    }
+
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+    }
+
+    public void onRemove(Host host) {
+        childPolicy.onRemove(host);
+    }
+
+    public void close() {
+        childPolicy.close();
+    }
+}
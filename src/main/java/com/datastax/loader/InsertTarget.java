@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+
+import java.util.List;
+
+// A further table that every input row is written to, e.g. a query table
+// with a different primary key.  Its columns are taken by name from the
+// row parsed for the first -schema, so the line is only parsed once.
+class InsertTarget {
+    private final String schema;
+    private final PreparedStatement statement;
+    private final int[] columns;
+
+    private InsertTarget(String inSchema, PreparedStatement inStatement, int[] inColumns) {
+        schema = inSchema;
+        statement = inStatement;
+        columns = inColumns;
+    }
+
+    // Returns null, after saying why, if a column is not in the input or
+    // has another type there
+    static InsertTarget create(CqlDelimParser input, CqlDelimParser target,
+                               PreparedStatement inStatement) {
+        List<String> inputNames = input.getColumnNames();
+        List<DataType> inputTypes = input.getColumnTypes();
+        List<String> names = target.getColumnNames();
+        List<DataType> types = target.getColumnTypes();
+        int[] tColumns = new int[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            tColumns[i] = inputNames.indexOf(names.get(i));
+            if (-1 == tColumns[i]) {
+                System.err.println("Column " + names.get(i) + " of " + target.getKeyspace() + "."
+                        + target.getTable() + " is not in the first -schema");
+                return null;
+            }
+            if (!types.get(i).equals(inputTypes.get(tColumns[i]))) {
+                System.err.println("Column " + names.get(i) + " of " + target.getKeyspace() + "."
+                        + target.getTable() + " is " + types.get(i) + ", but "
+                        + inputTypes.get(tColumns[i]) + " in the first -schema");
+                return null;
+            }
+        }
+        return new InsertTarget(target.getKeyspace() + "." + target.getTable(), inStatement, tColumns);
+    }
+
+    public String getSchema() {
+        return schema;
+    }
+
+    public BoundStatement bind(List<Object> elements, boolean nullsUnset) {
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++)
+            values[i] = elements.get(columns[i]);
+        BoundStatement bound = statement.bind(values);
+        if (nullsUnset) {
+            for (int i = 0; i < values.length; i++)
+                if (null == values[i])
+                    bound.unset(i);
+        }
+        return bound;
+    }
+}
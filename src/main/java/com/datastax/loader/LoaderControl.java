@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.loader.futures.InFlightBudget;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoaderControl implements LoaderControlMBean {
+    private static final AtomicInteger ids = new AtomicInteger(0);
+    private final RateLimiter rateLimiter;
+    private final InFlightBudget inFlightBudget;
+    private final List<Runnable> drainListeners = new CopyOnWriteArrayList<>();
+    private final Object pauseLock = new Object();
+    private volatile boolean paused = false;
+    private volatile boolean draining = false;
+    private ObjectName objectName = null;
+
+    // inFlightBudget may be null when the tool has no in-flight window
+    public LoaderControl(RateLimiter inRateLimiter, InFlightBudget inInFlightBudget) {
+        rateLimiter = inRateLimiter;
+        inFlightBudget = inInFlightBudget;
+    }
+
+    public void register(String type) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.datastax.loader:type=" + type
+                    + ",id=" + ids.incrementAndGet());
+            server.registerMBean(this, objectName);
+        } catch (Exception e) {
+            System.err.println("Could not register the JMX control: " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    public void unregister() {
+        if (null == objectName)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            System.err.println("Could not unregister the JMX control: " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    public double getRate() {
+        return rateLimiter.getRate();
+    }
+
+    public void setRate(double rate) {
+        if (0 >= rate)
+            throw new IllegalArgumentException("Rate must be positive");
+        rateLimiter.setRate(rate);
+        System.err.println("*** Rate set to " + rate);
+    }
+
+    public int getInFlightLimit() {
+        return (null == inFlightBudget) ? -1 : inFlightBudget.getLimit();
+    }
+
+    public void setInFlightLimit(int limit) {
+        if (null == inFlightBudget)
+            throw new UnsupportedOperationException("No in-flight limit to change");
+        if (0 >= limit)
+            throw new IllegalArgumentException("In-flight limit must be positive");
+        inFlightBudget.setLimit(limit);
+        System.err.println("*** In-flight limit set to " + limit);
+    }
+
+    public int getInFlight() {
+        return (null == inFlightBudget) ? -1 : inFlightBudget.getInFlight();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void pause() {
+        paused = true;
+        System.err.println("*** Paused");
+    }
+
+    public void resume() {
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+        System.err.println("*** Resumed");
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public void drain() {
+        synchronized (pauseLock) {
+            draining = true;
+            pauseLock.notifyAll();
+        }
+        System.err.println("*** Draining");
+        for (Runnable listener : drainListeners)
+            listener.run();
+    }
+
+    public void onDrain(Runnable listener) {
+        drainListeners.add(listener);
+    }
+
+    // Called by the reading threads before every row - blocks while the
+    // run is paused, unless it is draining
+    public void awaitResumed() throws InterruptedException {
+        if (!paused)
+            return;
+        synchronized (pauseLock) {
+            while (paused && !draining)
+                pauseLock.wait();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+// Runtime controls of a running load or unload, published over JMX
+// (e.g. with jconsole) as com.datastax.loader:type=<tool>,id=<n>
+public interface LoaderControlMBean {
+    double getRate();
+
+    void setRate(double rate);
+
+    int getInFlightLimit();
+
+    void setInFlightLimit(int limit);
+
+    int getInFlight();
+
+    boolean isPaused();
+
+    void pause();
+
+    void resume();
+
+    boolean isDraining();
+
+    // Stop reading input, wait for the rows in flight and write a
+    // checkpoint for every unfinished input
+    void drain();
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+// What a load or unload started through the builders did
+public class LoaderStats {
+    private final boolean success;
+    private final long rows;
+    private final long linesRead;
+    private final long parseErrors;
+    private final long insertErrors;
+    private final long elapsedMillis;
+
+    LoaderStats(boolean inSuccess, long inRows, long inLinesRead,
+                long inParseErrors, long inInsertErrors, long inElapsedMillis) {
+        success = inSuccess;
+        rows = inRows;
+        linesRead = inLinesRead;
+        parseErrors = inParseErrors;
+        insertErrors = inInsertErrors;
+        elapsedMillis = inElapsedMillis;
+    }
+
+    // False if the load gave up after -maxErrors or -maxInsertErrors
+    public boolean isSuccess() {
+        return success;
+    }
+
+    // Rows inserted (load) or written out (unload)
+    public long getRows() {
+        return rows;
+    }
+
+    public long getLinesRead() {
+        return linesRead;
+    }
+
+    public long getParseErrors() {
+        return parseErrors;
+    }
+
+    public long getInsertErrors() {
+        return insertErrors;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "LoaderStats{success=" + success + ", rows=" + rows
+                + ", linesRead=" + linesRead + ", parseErrors=" + parseErrors
+                + ", insertErrors=" + insertErrors + ", elapsedMillis=" + elapsedMillis + "}";
+    }
+}
@@ -17,13 +17,23 @@ package com.datastax.loader;
 
 import com.datastax.driver.core.*;
 
+import static com.datastax.loader.util.StatementUtils.serializedSize;
+
 public class RateLimitedSession extends EnhancedSession {
     final RateLimiter rateLimiter;
+    private final com.google.common.util.concurrent.RateLimiter byteRateLimiter;
     private final Class<?> batchClass;
 
     public RateLimitedSession(Session inSession, RateLimiter inRateLimiter) {
+        this(inSession, inRateLimiter, -1);
+    }
+
+    // byteRate is in bytes (of bound values) per second, <= 0 for no limit
+    public RateLimitedSession(Session inSession, RateLimiter inRateLimiter,
+                              double byteRate) {
         super(inSession);
         rateLimiter = inRateLimiter;
+        byteRateLimiter = (0 < byteRate) ? com.google.common.util.concurrent.RateLimiter.create(byteRate) : null;
         BatchStatement batch = new BatchStatement();
         batchClass = batch.getClass();
     }
@@ -48,6 +58,11 @@ public class RateLimitedSession extends EnhancedSession {
             rateLimiter.acquire(((BatchStatement) statement).size());
         else
             rateLimiter.acquire();
+        if (null != byteRateLimiter) {
+            int bytes = serializedSize(statement);
+            if (0 < bytes)
+                byteRateLimiter.acquire(bytes);
+        }
         return super.executeAsync(statement);
     }
 
@@ -17,14 +17,16 @@ package com.datastax.loader;
 
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import com.datastax.loader.util.ProgressSampler;
 
 import java.io.PrintStream;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RateLimiter {
-    private static long updateRate = 100000;
+    private final long updateRate;
     private final com.google.common.util.concurrent.RateLimiter rateLimiter;
-    private final AtomicLong numAcquires;
+    private final LongAdder numAcquires;
+    private final ProgressSampler sampler;
     private final Timer timer;
     private final PrintStream stream;
     private final long firstTime;
@@ -40,10 +42,12 @@ public class RateLimiter {
         if ((null != stream) && (null != timer)) {
             printHeader();
         }
-        numAcquires = new AtomicLong(0);
+        numAcquires = new LongAdder();
         lastTime = System.currentTimeMillis();
         firstTime = lastTime;
         lastVal = 0;
+        // the acquiring threads only count - a background thread reports
+        sampler = new ProgressSampler(numAcquires, updateRate, this::reportProgress);
     }
 
     protected void printHeader() {
@@ -81,7 +85,7 @@ public class RateLimiter {
         long etime = (currentTime - firstTime) / 1000;
         double rateFromBeginning;
         if (null == currentVal) {
-            currentVal = numAcquires.get() - 1;
+            currentVal = numAcquires.sum() - 1;
             rateFromBeginning = (etime > 0) ? (currentVal + 0.0) / etime : 0;
             System.err.println("Lines Processed: \t" + currentVal
                     + "  Rate: \t" + rateFromBeginning);
@@ -97,24 +101,26 @@ public class RateLimiter {
         }
     }
 
-    protected synchronized void incrementAndReport(int permits) {
-        long currentVal = numAcquires.addAndGet(permits);
+    // Called from the sampler thread only
+    private void reportProgress(long currentVal) {
         long currentTime = System.currentTimeMillis();
-        if (permits > currentVal % updateRate) {
-            report(currentVal, currentTime);
-            lastTime = currentTime;
-            lastVal = currentVal;
-        }
+        report(currentVal, currentTime);
+        lastTime = currentTime;
+        lastVal = currentVal;
     }
 
     public void acquire() {
         rateLimiter.acquire();
-        incrementAndReport(1);
+        numAcquires.increment();
     }
 
     public void acquire(int permits) {
         rateLimiter.acquire(permits);
-        incrementAndReport(permits);
+        numAcquires.add(permits);
+    }
+
+    public void close() {
+        sampler.close();
     }
 
     public double getRate() {
@@ -130,6 +136,6 @@ public class RateLimiter {
     }
 
     public long numAcquires() {
-        return numAcquires.get();
+        return numAcquires.sum();
     }
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader;
+
+import com.datastax.driver.core.DataType;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Generates the values of synthetic rows.  Every value is a function of
+// the seed and the row number only, so the output does not depend on the
+// number of threads.  Row r belongs to partition (r / rowsPerPartition) %
+// partitions and is clustering row r % rowsPerPartition of it; partition
+// and clustering key columns are derived from those numbers so that keys
+// are distinct, all other columns are random.  Not thread-safe.
+class RowGenerator {
+    public enum Role {PARTITION, CLUSTERING, REGULAR}
+
+    private static final long BASE_MILLIS = 946684800000L; // 2000-01-01
+    private static final long KEY_STEP_MILLIS = 60000L;    // survives the default date format
+    private static final long TEN_YEARS_MILLIS = 3652L * 24 * 3600 * 1000;
+    private static final long GREGORIAN_OFFSET_MILLIS = 12219292800000L;
+    private static final char[] ALPHANUMERIC =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    private final List<DataType> types;
+    private final List<Role> roles;
+    private final long partitions;
+    private final long rowsPerPartition;
+    private final int minValueSize;
+    private final int maxValueSize;
+    private final boolean exponentialSizes;
+    private final int minCollectionSize;
+    private final int maxCollectionSize;
+    private final long seed;
+    private final List<Object> values;
+    private final StringBuilder sb = new StringBuilder();
+    private long state;
+
+    public RowGenerator(List<DataType> inTypes, List<Role> inRoles,
+                        long inPartitions, long inRowsPerPartition,
+                        int inMinValueSize, int inMaxValueSize,
+                        boolean inExponentialSizes,
+                        int inMinCollectionSize, int inMaxCollectionSize,
+                        long inSeed) {
+        types = inTypes;
+        roles = inRoles;
+        partitions = inPartitions;
+        rowsPerPartition = inRowsPerPartition;
+        minValueSize = inMinValueSize;
+        maxValueSize = inMaxValueSize;
+        exponentialSizes = inExponentialSizes;
+        minCollectionSize = inMinCollectionSize;
+        maxCollectionSize = inMaxCollectionSize;
+        seed = inSeed;
+        values = new ArrayList<>(Collections.nCopies(types.size(), null));
+    }
+
+    // The returned list is reused by the next call
+    public List<Object> generate(long row) {
+        long partition = (row / rowsPerPartition) % partitions;
+        long clustering = row % rowsPerPartition;
+        state = mix64(seed ^ mix64(row));
+        for (int i = 0; i < types.size(); i++) {
+            DataType type = types.get(i);
+            switch (roles.get(i)) {
+                case PARTITION:
+                    values.set(i, keyValue(type, partition, true));
+                    break;
+                case CLUSTERING:
+                    values.set(i, keyValue(type, clustering, false));
+                    break;
+                default:
+                    values.set(i, randomValue(type));
+            }
+        }
+        return values;
+    }
+
+    // Distinct ids give distinct values (for the numbers of partitions and
+    // clustering rows that make sense).  Partition keys are scrambled so
+    // they spread over the token ring, clustering keys keep their order.
+    private Object keyValue(DataType type, long id, boolean scramble) {
+        long x = scramble ? mix64(id) : id;
+        switch (type.getName()) {
+            case INT:
+                return scramble ? mix32((int) id) : (int) id;
+            case BIGINT:
+            case COUNTER:
+                return x;
+            case VARINT:
+                return BigInteger.valueOf(x);
+            case DECIMAL:
+                return BigDecimal.valueOf(x, 2);
+            case FLOAT:
+                return (float) id;
+            case DOUBLE:
+                return (double) id;
+            case ASCII:
+            case TEXT:
+            case VARCHAR:
+                return scramble ? Long.toHexString(x) : Long.toString(id);
+            case TIMESTAMP:
+                return new Date(BASE_MILLIS + id * KEY_STEP_MILLIS);
+            case UUID:
+                return new UUID((mix64(~id) & ~0xF000L) | 0x4000L,
+                        (id & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L);
+            case TIMEUUID:
+                return timeUUID(BASE_MILLIS + id * KEY_STEP_MILLIS, id);
+            case INET:
+                return inet(scramble ? mix32((int) id) : (int) id);
+            case BOOLEAN:
+                return 1 == (id & 1);
+            case BLOB:
+                return ByteBuffer.wrap(ByteBuffer.allocate(8).putLong(x).array());
+            default:
+                return randomValue(type);
+        }
+    }
+
+    private Object randomValue(DataType type) {
+        switch (type.getName()) {
+            case INT:
+                return (int) nextLong();
+            case BIGINT:
+            case COUNTER:
+                return nextLong();
+            case VARINT:
+                return BigInteger.valueOf(nextLong());
+            case DECIMAL:
+                return BigDecimal.valueOf(nextLong() >> 16, 4);
+            case FLOAT:
+                // at most three decimals, as the number format prints
+                return (float) (nextInt(1000000) / 100.0);
+            case DOUBLE:
+                return nextLong() % 1000000000000L / 1000.0;
+            case ASCII:
+            case TEXT:
+            case VARCHAR:
+                return randomString(nextSize(minValueSize, maxValueSize, exponentialSizes));
+            case TIMESTAMP:
+                return new Date(BASE_MILLIS + nextBounded(TEN_YEARS_MILLIS));
+            case UUID:
+                return new UUID((nextLong() & ~0xF000L) | 0x4000L,
+                        (nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L);
+            case TIMEUUID:
+                return timeUUID(BASE_MILLIS + nextBounded(TEN_YEARS_MILLIS), nextLong());
+            case INET:
+                return inet((int) nextLong());
+            case BOOLEAN:
+                return 0 > nextLong();
+            case BLOB:
+                return randomBytes(nextSize(minValueSize, maxValueSize, exponentialSizes));
+            case LIST: {
+                DataType elementType = type.getTypeArguments().get(0);
+                int size = nextSize(minCollectionSize, maxCollectionSize, false);
+                if (0 == size)
+                    return null; // Cassandra does not tell empty from null
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(randomValue(elementType));
+                return list;
+            }
+            case SET: {
+                DataType elementType = type.getTypeArguments().get(0);
+                int size = nextSize(minCollectionSize, maxCollectionSize, false);
+                if (0 == size)
+                    return null;
+                Set<Object> set = new LinkedHashSet<>();
+                for (int i = 0; i < size; i++)
+                    set.add(randomValue(elementType));
+                return set;
+            }
+            case MAP: {
+                DataType keyType = type.getTypeArguments().get(0);
+                DataType valueType = type.getTypeArguments().get(1);
+                int size = nextSize(minCollectionSize, maxCollectionSize, false);
+                if (0 == size)
+                    return null;
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++)
+                    map.put(randomValue(keyType), randomValue(valueType));
+                return map;
+            }
+            default:
+                throw new IllegalArgumentException("Cannot generate values of type " + type);
+        }
+    }
+
+    // Uniform in [min, max], or exponential with mean (min + max) / 2
+    // cut off at max
+    private int nextSize(int min, int max, boolean exponential) {
+        if (min >= max)
+            return min;
+        if (!exponential)
+            return min + nextInt(max - min + 1);
+        double mean = (max - min) / 2.0;
+        double u = (nextLong() >>> 11) * 0x1.0p-53;
+        return (int) Math.min(max, min - mean * Math.log(1.0 - u));
+    }
+
+    private String randomString(int length) {
+        sb.setLength(0);
+        for (int i = 0; i < length; i++)
+            sb.append(ALPHANUMERIC[nextInt(ALPHANUMERIC.length)]);
+        return sb.toString();
+    }
+
+    private ByteBuffer randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i += 8) {
+            long l = nextLong();
+            for (int j = i; j < Math.min(i + 8, length); j++, l >>>= 8)
+                bytes[j] = (byte) l;
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    // A version 1 UUID for the given time
+    private static UUID timeUUID(long millis, long clockSeqAndNode) {
+        long t = (millis + GREGORIAN_OFFSET_MILLIS) * 10000;
+        long msb = ((t & 0xFFFFFFFFL) << 32) | (((t >>> 32) & 0xFFFFL) << 16)
+                | 0x1000L | ((t >>> 48) & 0x0FFFL);
+        long lsb = (clockSeqAndNode & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(msb, lsb);
+    }
+
+    private static InetAddress inet(int address) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) (address >>> 24),
+                    (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // cannot happen for 4 bytes
+        }
+    }
+
+    private long nextLong() {
+        state += 0x9E3779B97F4A7C15L;
+        return mix64(state);
+    }
+
+    private int nextInt(int bound) {
+        return (int) ((nextLong() >>> 1) % bound);
+    }
+
+    private long nextBounded(long bound) {
+        return (nextLong() >>> 1) % bound;
+    }
+
+    // SplitMix64 and MurmurHash3 finalizers - both are bijections
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int mix32(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+}
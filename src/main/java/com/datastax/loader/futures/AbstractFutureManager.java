@@ -1,6 +1,7 @@
 package com.datastax.loader.futures;
 
 import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
 
 import java.util.concurrent.TimeUnit;
 
@@ -18,7 +19,13 @@ public abstract class AbstractFutureManager implements FutureManager {
 
     public abstract boolean add(ResultSetFuture future, String line);
 
+    public abstract boolean add(Statement statement, String line);
+
+    public abstract boolean add(Statement statement, String line, int rows);
+
     public abstract boolean cleanup();
 
+    public abstract boolean isDone();
+
     public abstract long getNumInserted();
 }
@@ -1,27 +1,95 @@
 package com.datastax.loader.futures;
 
+import com.datastax.driver.core.Host;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.datastax.loader.util.LoaderMetrics;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 
-import java.util.concurrent.Semaphore;
+import static com.datastax.loader.util.StatementUtils.serializedSize;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ActionFutureSet extends AbstractFutureManager {
-    protected final Semaphore available;
+    // Rows held back because their replicas are at their cap
+    protected static final int MAX_DEFERRED = 1000;
+    // Only every SUBMIT_SAMPLE-th submit is timed - the timer is not free
+    protected static final int SUBMIT_SAMPLE = 16;
+    protected final InFlightBudget available;
+    protected final InFlightBudget availableBytes;
+    protected final AtomicLong outstanding;
     protected final AtomicLong insertErrors;
-    protected final AtomicLong numInserted;
+    protected final LongAdder numInserted;
+    protected final Session session;
+    protected final HostThrottle hostThrottle;
+    protected final RetryQueue retryQueue;
+    protected final Deque<Deferred> deferred;
+    // Set when a host gives back a slot, so the deferred rows are only
+    // looked at again once one of them may have room
+    protected final AtomicBoolean hostReleased;
+    protected final LoaderMetrics metrics;
     protected FutureAction futureAction = null;
+    private int submitted = 0;
 
     public ActionFutureSet(int inSize, long inQueryTimeout,
                            long inMaxInsertErrors,
                            FutureAction inFutureAction) {
-        super(inSize, inQueryTimeout, inMaxInsertErrors);
+        this(new InFlightBudget(inSize), inQueryTimeout, inMaxInsertErrors,
+                inFutureAction);
+    }
+
+    public ActionFutureSet(InFlightBudget inBudget, long inQueryTimeout,
+                           long inMaxInsertErrors,
+                           FutureAction inFutureAction) {
+        this(null, inBudget, null, null, null, inQueryTimeout, inMaxInsertErrors,
+                null, inFutureAction);
+    }
+
+    public ActionFutureSet(Session inSession, InFlightBudget inBudget,
+                           InFlightBudget inByteBudget,
+                           HostThrottle inHostThrottle, RetryQueue inRetryQueue,
+                           long inQueryTimeout,
+                           long inMaxInsertErrors, LoaderMetrics inMetrics,
+                           FutureAction inFutureAction) {
+        this(inSession, inBudget, inByteBudget, inHostThrottle, inRetryQueue,
+                inQueryTimeout, inMaxInsertErrors, new AtomicLong(0), inMetrics,
+                inFutureAction);
+    }
+
+    public ActionFutureSet(Session inSession, InFlightBudget inBudget,
+                           InFlightBudget inByteBudget,
+                           HostThrottle inHostThrottle, RetryQueue inRetryQueue,
+                           long inQueryTimeout,
+                           long inMaxInsertErrors, AtomicLong inInsertErrors,
+                           LoaderMetrics inMetrics,
+                           FutureAction inFutureAction) {
+        super(inBudget.getLimit(), inQueryTimeout, inMaxInsertErrors);
+        metrics = inMetrics;
         futureAction = inFutureAction;
-        available = new Semaphore(size, true);
-        insertErrors = new AtomicLong(0);
-        numInserted = new AtomicLong(0);
+        available = inBudget;
+        availableBytes = inByteBudget;
+        session = inSession;
+        hostThrottle = inHostThrottle;
+        retryQueue = inRetryQueue;
+        deferred = new ArrayDeque<>();
+        hostReleased = new AtomicBoolean(false);
+        outstanding = new AtomicLong(0);
+        insertErrors = inInsertErrors;
+        numInserted = new LongAdder();
     }
 
     public boolean add(ResultSetFuture future, final String line) {
@@ -32,37 +100,281 @@ public class ActionFutureSet extends AbstractFutureManager {
         } catch (InterruptedException e) {
             return false;
         }
+        track(future, null, line, 1, null, 0, System.nanoTime());
+        return true;
+    }
+
+    public boolean add(Statement statement, String line) {
+        return add(statement, line, 1);
+    }
+
+    public boolean add(Statement statement, String line, int rows) {
+        if (maxInsertErrors <= insertErrors.get())
+            return false;
+        if (null == hostThrottle)
+            return submit(statement, line, rows, null);
+
+        if (!submitDeferred())
+            return false;
+        Host host = hostThrottle.pick(statement);
+        if (null == host)
+            return submit(statement, line, rows, null);
+        if (deferred.isEmpty() && hostThrottle.tryAcquire(host))
+            return submit(statement, line, rows, host);
+
+        // Keep the other replicas busy while this one catches up
+        deferred.addLast(new Deferred(statement, line, rows));
+        if (null != metrics)
+            metrics.getDeferred().inc();
+        if (MAX_DEFERRED <= deferred.size())
+            return submitOldestDeferred();
+        return true;
+    }
+
+    // Submit whatever deferred rows now have room on one of their replicas.
+    // Nothing changes for them until a host gives back a slot, unless
+    // nothing is in flight at all (a rate limited host, say).
+    private boolean submitDeferred() {
+        if (deferred.isEmpty())
+            return true;
+        if (!hostReleased.getAndSet(false) && (0 < outstanding.get()))
+            return true;
+        Iterator<Deferred> iter = deferred.iterator();
+        while (iter.hasNext()) {
+            Deferred d = iter.next();
+            Host host = hostThrottle.pick(d.statement);
+            if ((null == host) || hostThrottle.tryAcquire(host)) {
+                iter.remove();
+                if (null != metrics)
+                    metrics.getDeferred().dec();
+                if (!submit(d.statement, d.line, d.rows, host))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Wait for room for the oldest deferred row
+    private boolean submitOldestDeferred() {
+        Deferred d = deferred.pollFirst();
+        if (null != metrics)
+            metrics.getDeferred().dec();
+        Host host = hostThrottle.pick(d.statement);
+        if (null != host) {
+            try {
+                hostThrottle.acquire(host);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return submit(d.statement, d.line, d.rows, host);
+    }
+
+    private boolean submit(Statement statement, String line, int rows, Host host) {
+        long submitStart = (0 == ++submitted % SUBMIT_SAMPLE) ? System.nanoTime() : 0;
+        int bytes = 0;
+        try {
+            if ((null != availableBytes) || (null != metrics)) {
+                int size = serializedSize(statement);
+                if (null != metrics)
+                    metrics.getBytesWritten().mark(size);
+                // a single huge row may use the whole budget, but not more
+                if (null != availableBytes) {
+                    bytes = Math.min(size, availableBytes.getLimit());
+                    availableBytes.acquire(bytes);
+                }
+            }
+            try {
+                available.acquire();
+            } catch (InterruptedException e) {
+                if (null != availableBytes)
+                    availableBytes.release(bytes);
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            if (null != host)
+                hostThrottle.release(host);
+            return false;
+        }
+        long start = System.nanoTime();
+        ResultSetFuture future;
+        HostThrottle.setHint(host);
+        try {
+            future = session.executeAsync(statement);
+        } finally {
+            HostThrottle.setHint(null);
+        }
+        if ((null != metrics) && (0 != submitStart))
+            metrics.getSubmit().update(System.nanoTime() - submitStart, TimeUnit.NANOSECONDS);
+        track(future, statement, line, rows, host, bytes, start);
+        return true;
+    }
+
+    private void track(ResultSetFuture future, Statement statement, String line,
+                       int rows, Host host, int bytes, long start) {
+        outstanding.incrementAndGet();
+        listen(future, statement, line, rows, host, bytes, start, 0);
+    }
+
+    // attempt 0 holds a slot of the window (and bytes of the byte budget),
+    // the retries hold a slot of the retry queue instead
+    private void listen(ResultSetFuture future, final Statement statement,
+                        final String line, final int rows,
+                        final Host host, final int bytes,
+                        final long start, final int attempt) {
         Futures.addCallback(future, new FutureCallback<ResultSet>() {
             @Override
             public void onSuccess(ResultSet rs) {
-                available.release();
-                numInserted.incrementAndGet();
+                long rtt = System.nanoTime() - start;
+                if (null != metrics)
+                    metrics.getInsertLatency().update(rtt, TimeUnit.NANOSECONDS);
+                available.onSample(rtt, false);
+                if (null != host) {
+                    hostThrottle.release(host, rtt);
+                    hostReleased.set(true);
+                }
+                numInserted.add(rows);
                 futureAction.onSuccess();
+                releaseSlot(bytes, attempt);
+                complete();
             }
 
             @Override
             public void onFailure(Throwable t) {
-                available.release();
-                long numErrors = insertErrors.incrementAndGet();
-                futureAction.onFailure(t, line);
-                if (maxInsertErrors <= numErrors) {
-                    futureAction.onTooManyFailures();
+                long rtt = System.nanoTime() - start;
+                available.onSample(rtt, isOverload(t));
+                if (null != host) {
+                    hostThrottle.release(host, rtt);
+                    hostReleased.set(true);
                 }
+                releaseSlot(bytes, attempt);
+                failed(t, statement, line, rows, attempt);
             }
         });
-        return true;
     }
 
+    // Hands the request to the retry queue if it may be retried, and
+    // otherwise counts it as an error.  The request stays outstanding while
+    // it waits, so cleanup() waits for the retries, too.
+    private void failed(Throwable t, final Statement statement,
+                        final String line, final int rows, final int attempt) {
+        if ((null != retryQueue) && (null != statement) && isRetryable(t)
+                && (attempt < retryQueue.getMaxRetries())
+                && (maxInsertErrors > insertErrors.get())) {
+            final int size = serializedSize(statement);
+            if (retryQueue.hold(size)) {
+                if (null != metrics)
+                    metrics.getInsertRetries().mark();
+                retryQueue.schedule(attempt + 1, size,
+                        () -> resend(statement, line, rows, attempt + 1));
+                return;
+            }
+        }
+        if (null != metrics)
+            metrics.getInsertErrors().mark();
+        long numErrors = insertErrors.incrementAndGet();
+        futureAction.onFailure(t, line);
+        if (maxInsertErrors <= numErrors) {
+            futureAction.onTooManyFailures();
+        }
+        complete();
+    }
+
+    // Runs on the retry queue's thread, which holds a retry slot for us
+    private void resend(Statement statement, String line, int rows, int attempt) {
+        Session target = (null != retryQueue.getSession()) ? retryQueue.getSession() : session;
+        long start = System.nanoTime();
+        ResultSetFuture future;
+        try {
+            future = target.executeAsync(statement);
+        } catch (RuntimeException e) {
+            retryQueue.release();
+            failed(e, statement, line, rows, attempt);
+            return;
+        }
+        listen(future, statement, line, rows, null, 0, start, attempt);
+    }
+
+    protected static boolean isOverload(Throwable t) {
+        return (t instanceof WriteTimeoutException)
+                || (t instanceof OperationTimedOutException)
+                || (t instanceof OverloadedException);
+    }
+
+    // Failures that may go away if we wait a bit
+    protected static boolean isRetryable(Throwable t) {
+        return isOverload(t)
+                || (t instanceof UnavailableException)
+                || (t instanceof NoHostAvailableException);
+    }
+
+    private void releaseSlot(int bytes, int attempt) {
+        if (0 < attempt) {
+            retryQueue.release();
+            return;
+        }
+        available.release();
+        if (null != availableBytes)
+            availableBytes.release(bytes);
+    }
+
+    private void complete() {
+        if (0 == outstanding.decrementAndGet()) {
+            synchronized (outstanding) {
+                outstanding.notifyAll();
+            }
+        }
+    }
+
+    // Wait for our own futures only - the budget may be shared
     public boolean cleanup() {
         try {
-            available.acquire(this.size);
-        } catch (InterruptedException e) {
-            return false;
+            // don't send held back rows if we are giving up anyway
+            if (maxInsertErrors <= insertErrors.get()) {
+                if (null != metrics)
+                    metrics.getDeferred().dec(deferred.size());
+                deferred.clear();
+            }
+            while (!deferred.isEmpty()) {
+                if (!submitOldestDeferred())
+                    return false;
+            }
+            synchronized (outstanding) {
+                while (0 < outstanding.get()) {
+                    try {
+                        outstanding.wait();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            futureAction.onCleanup();
         }
-        return true;
+    }
+
+    public boolean isDone() {
+        // cleanup() drops the held back rows once we have given up
+        boolean givingUp = maxInsertErrors <= insertErrors.get();
+        if (!givingUp && !deferred.isEmpty())
+            submitDeferred();
+        return (givingUp || deferred.isEmpty()) && (0 == outstanding.get());
     }
 
     public long getNumInserted() {
-        return numInserted.get();
+        return numInserted.sum();
+    }
+
+    protected static class Deferred {
+        final Statement statement;
+        final String line;
+        final int rows;
+
+        Deferred(Statement inStatement, String inLine, int inRows) {
+            statement = inStatement;
+            line = inLine;
+            rows = inRows;
+        }
     }
 }
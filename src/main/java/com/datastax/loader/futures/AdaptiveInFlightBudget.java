@@ -0,0 +1,101 @@
+package com.datastax.loader.futures;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// An InFlightBudget that sizes itself from the observed round-trip times
+// (gradient/Vegas style).  Once per window the average RTT is compared to
+// the minimum RTT seen: while they are close the cluster is not queueing
+// and the limit grows (by about sqrt(limit)); as the average pulls away
+// from the minimum the limit shrinks proportionally.  Timeouts and
+// overloads cut the limit by 10% right away.
+public class AdaptiveInFlightBudget extends InFlightBudget {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MIN_RTT_RESET_WINDOWS = 60;
+    private static final double SMOOTHING = 0.2;
+    private final int minLimit;
+    private final int maxLimit;
+    private final PrintStream reportStream;
+    private final LongAdder rttSum = new LongAdder();
+    private final LongAdder rttCount = new LongAdder();
+    private final AtomicBoolean dropped = new AtomicBoolean(false);
+    private final AtomicLong windowEnd;
+    private volatile long minRtt = Long.MAX_VALUE;
+    private double estimatedLimit;
+    private int windows = 0;
+
+    public AdaptiveInFlightBudget(int inInitialLimit, int inMinLimit,
+                                  int inMaxLimit, PrintStream inReportStream) {
+        super(inInitialLimit);
+        minLimit = inMinLimit;
+        maxLimit = inMaxLimit;
+        reportStream = inReportStream;
+        estimatedLimit = inInitialLimit;
+        windowEnd = new AtomicLong(System.nanoTime() + WINDOW_NANOS);
+    }
+
+    @Override
+    public void onSample(long rttNanos, boolean didDrop) {
+        if (didDrop) {
+            dropped.set(true);
+        } else {
+            rttSum.add(rttNanos);
+            rttCount.increment();
+            if (rttNanos < minRtt)
+                minRtt = rttNanos;
+        }
+        long now = System.nanoTime();
+        long end = windowEnd.get();
+        if ((now >= end) && windowEnd.compareAndSet(end, now + WINDOW_NANOS))
+            update();
+    }
+
+    // An outside change (e.g. over JMX) becomes the new starting point
+    @Override
+    public synchronized void setLimit(int newLimit) {
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        super.setLimit((int) estimatedLimit);
+    }
+
+    private synchronized void update() {
+        long count = rttCount.sumThenReset();
+        long sum = rttSum.sumThenReset();
+        boolean didDrop = dropped.getAndSet(false);
+        int oldLimit = getLimit();
+        if ((0 == count) && !didDrop)
+            return;
+
+        double avgRtt = (count > 0) ? ((double) sum) / count : 0;
+        double newLimit;
+        if (didDrop) {
+            newLimit = estimatedLimit * 0.9;
+        } else {
+            double gradient = Math.max(0.5, Math.min(1.0, minRtt / avgRtt));
+            newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+            newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+            // Only grow when the window is actually used - rising latency
+            // still shrinks it
+            if (getInFlight() < oldLimit / 2)
+                newLimit = Math.min(newLimit, estimatedLimit);
+        }
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+
+        // Re-learn the minimum from time to time, as the no-load latency
+        // of the cluster changes (compaction, node changes, ...)
+        if ((++windows % MIN_RTT_RESET_WINDOWS == 0) && (count > 0))
+            minRtt = (long) avgRtt;
+
+        int limit = (int) estimatedLimit;
+        if (limit != oldLimit) {
+            super.setLimit(limit);
+            if (null != reportStream) {
+                reportStream.println(String.format("In-flight limit: %d -> %d  (min RTT %.2f ms, avg RTT %.2f ms%s)",
+                        oldLimit, limit, minRtt / 1e6, avgRtt / 1e6,
+                        didDrop ? ", timeouts" : ""));
+            }
+        }
+    }
+}
@@ -6,4 +6,8 @@ public interface FutureAction {
     void onFailure(Throwable t, String line);
 
     void onTooManyFailures();
+
+    // All futures are done - no more callbacks will follow
+    default void onCleanup() {
+    }
 }
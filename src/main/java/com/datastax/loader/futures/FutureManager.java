@@ -1,11 +1,24 @@
 package com.datastax.loader.futures;
 
 import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
 
 public interface FutureManager {
     boolean add(ResultSetFuture future, String line);
 
+    // Executes the statement once there is room in flight
+    boolean add(Statement statement, String line);
+
+    // The same, for a statement that inserts this many input rows: 0 for
+    // a further table's copy of a row, the number of rows for a batch
+    boolean add(Statement statement, String line, int rows);
+
     boolean cleanup();
 
+    // Sends held back rows that have room now, without waiting, and
+    // tells whether everything added so far has completed
+    boolean isDone();
+
+    // Input rows whose statements succeeded
     long getNumInserted();
 }
@@ -0,0 +1,163 @@
+package com.datastax.loader.futures;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Per-host in-flight and rate accounting.  For each statement the least
+// loaded replica is picked (and handed to the driver as a routing hint),
+// so that a slow node only holds up the rows it owns.  A host's in-flight
+// cap shrinks as its latency grows relative to the fastest host.  Only
+// hosts the load balancing policy treats as LOCAL are picked: the driver
+// has no pool for an IGNORED one, and would send the request elsewhere.
+public class HostThrottle {
+    private static final ThreadLocal<Host> hint = new ThreadLocal<>();
+    private static final double EWMA_WEIGHT = 0.05;
+    private static final double MIN_LIMIT_FACTOR = 0.1;
+    private final Metadata metadata;
+    private final LoadBalancingPolicy policy;
+    private final ProtocolVersion protocolVersion;
+    private final CodecRegistry codecRegistry;
+    private final int maxInFlight;
+    private final double rate;
+    private final ConcurrentMap<Host, HostState> states;
+
+    public HostThrottle(Cluster cluster, int inMaxInFlight, double inRate) {
+        metadata = cluster.getMetadata();
+        policy = cluster.getConfiguration().getPolicies().getLoadBalancingPolicy();
+        protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+        codecRegistry = cluster.getConfiguration().getCodecRegistry();
+        maxInFlight = inMaxInFlight;
+        rate = inRate;
+        states = new ConcurrentHashMap<>();
+    }
+
+    // The host the current thread is about to send a request to
+    public static Host hintedHost() {
+        return hint.get();
+    }
+
+    public static void setHint(Host host) {
+        if (null == host)
+            hint.remove();
+        else
+            hint.set(host);
+    }
+
+    // The least loaded local replica for this statement, or null if it
+    // cannot be routed (no routing key, or no local replica is up)
+    public Host pick(Statement statement) {
+        String keyspace = statement.getKeyspace();
+        ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+        if ((null == keyspace) || (null == routingKey))
+            return null;
+        Set<Host> replicas = metadata.getReplicas(Metadata.quote(keyspace), routingKey);
+        Host best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Host host : replicas) {
+            if (!host.isUp() || (HostDistance.LOCAL != policy.distance(host)))
+                continue;
+            HostState state = state(host);
+            double load = (state.inFlight.get() + 1.0) / limit(state);
+            if (load < bestLoad) {
+                best = host;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    public boolean tryAcquire(Host host) {
+        HostState state = state(host);
+        if (state.inFlight.incrementAndGet() > limit(state)) {
+            state.inFlight.decrementAndGet();
+            return false;
+        }
+        if ((null != state.rateLimiter) && !state.rateLimiter.tryAcquire()) {
+            release(host);
+            return false;
+        }
+        return true;
+    }
+
+    public void acquire(Host host) throws InterruptedException {
+        HostState state = state(host);
+        synchronized (state) {
+            state.waiters++;
+            try {
+                while (state.inFlight.incrementAndGet() > limit(state)) {
+                    state.inFlight.decrementAndGet();
+                    state.wait(100);
+                }
+            } finally {
+                state.waiters--;
+            }
+        }
+        if (null != state.rateLimiter)
+            state.rateLimiter.acquire();
+    }
+
+    public void release(Host host, long rttNanos) {
+        HostState state = state(host);
+        double ewma = state.ewmaRtt;
+        state.ewmaRtt = (0 == ewma) ? rttNanos : ewma + EWMA_WEIGHT * (rttNanos - ewma);
+        release(host);
+    }
+
+    // Gives the slot back without a round trip to learn from, e.g. when
+    // the request was never sent
+    public void release(Host host) {
+        HostState state = state(host);
+        state.inFlight.decrementAndGet();
+        if (0 < state.waiters) {
+            synchronized (state) {
+                state.notifyAll();
+            }
+        }
+    }
+
+    public int getInFlight(Host host) {
+        return state(host).inFlight.get();
+    }
+
+    // Scale the cap down for hosts that are slower than the fastest one
+    private int limit(HostState state) {
+        double ewma = state.ewmaRtt;
+        if (0 == ewma)
+            return maxInFlight;
+        double fastest = Double.MAX_VALUE;
+        for (HostState s : states.values()) {
+            if ((0 < s.ewmaRtt) && (s.ewmaRtt < fastest))
+                fastest = s.ewmaRtt;
+        }
+        double factor = Math.max(MIN_LIMIT_FACTOR, Math.min(1.0, fastest / ewma));
+        return Math.max(1, (int) (maxInFlight * factor));
+    }
+
+    private HostState state(Host host) {
+        HostState state = states.get(host);
+        if (null == state) {
+            state = new HostState(rate);
+            HostState prev = states.putIfAbsent(host, state);
+            if (null != prev)
+                state = prev;
+        }
+        return state;
+    }
+
+    private static class HostState {
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final com.google.common.util.concurrent.RateLimiter rateLimiter;
+        volatile double ewmaRtt = 0;
+        volatile int waiters = 0;
+
+        HostState(double rate) {
+            rateLimiter = (0 < rate) ? com.google.common.util.concurrent.RateLimiter.create(rate) : null;
+        }
+    }
+}
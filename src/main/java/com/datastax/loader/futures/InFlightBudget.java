@@ -0,0 +1,67 @@
+package com.datastax.loader.futures;
+
+import java.util.concurrent.Semaphore;
+
+// Bounds the number of requests (or bytes) in flight.  One budget can be
+// shared by any number of FutureManagers, so the whole window is
+// available to whichever tasks are still running.
+public class InFlightBudget {
+    private final LimitSemaphore available;
+    private int limit;
+
+    public InFlightBudget(int inLimit) {
+        limit = inLimit;
+        available = new LimitSemaphore(limit);
+    }
+
+    public void acquire() throws InterruptedException {
+        available.acquire();
+    }
+
+    public void acquire(int permits) throws InterruptedException {
+        available.acquire(permits);
+    }
+
+    public void release() {
+        available.release();
+    }
+
+    public void release(int permits) {
+        available.release(permits);
+    }
+
+    // Called with the round-trip time of every completed request, and
+    // whether it failed because the cluster could not keep up
+    public void onSample(long rttNanos, boolean dropped) {
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized void setLimit(int newLimit) {
+        if (newLimit > limit)
+            available.release(newLimit - limit);
+        else if (newLimit < limit)
+            available.reducePermits(limit - newLimit);
+        limit = newLimit;
+    }
+
+    public int getInFlight() {
+        return getLimit() - available.availablePermits();
+    }
+
+    // Semaphore.reducePermits() is protected
+    private static class LimitSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        LimitSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -1,44 +1,86 @@
 package com.datastax.loader.futures;
 
-import java.io.PrintStream;
-import java.util.concurrent.atomic.AtomicLong;
+import com.datastax.loader.util.AsyncLineWriter;
+import com.datastax.loader.util.ProgressSampler;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PrintingFutureAction implements FutureAction {
+    private static final int MAX_TRACES = 100;
     protected final long period = 100000;
-    protected final AtomicLong numInserted;
-    protected PrintStream logPrinter = null;
-    protected PrintStream badInsertPrinter = null;
+    protected final LongAdder numInserted;
+    protected final ProgressSampler sampler;
+    protected AsyncLineWriter logPrinter = null;
+    protected AsyncLineWriter badInsertPrinter = null;
+    // how often each distinct stack trace was seen - only the first one is
+    // written to the log
+    private final Map<String, LongAdder> traces = new ConcurrentHashMap<>();
 
-    public PrintingFutureAction(PrintStream inLogPrinter,
-                                PrintStream inBadInsertPrinter) {
+    public PrintingFutureAction(AsyncLineWriter inLogPrinter,
+                                AsyncLineWriter inBadInsertPrinter) {
         logPrinter = inLogPrinter;
         badInsertPrinter = inBadInsertPrinter;
-        numInserted = new AtomicLong(0);
+        numInserted = new LongAdder();
+        if (null != logPrinter)
+            sampler = new ProgressSampler(numInserted, period,
+                    cur -> logPrinter.println("Progress:  " + cur));
+        else
+            sampler = null;
     }
 
     public void onSuccess() {
-        if (logPrinter != null) {
-            long cur = numInserted.incrementAndGet();
-            if (0 == (cur % period)) {
-                logPrinter.println("Progress:  " + cur);
-            }
-        }
+        numInserted.increment();
     }
 
+    // Runs on a driver I/O thread - the writers only queue the lines
     public void onFailure(Throwable t, String line) {
         if (logPrinter != null) {
             logPrinter.println("Error inserting: " + t.getMessage());
-            t.printStackTrace(logPrinter);
+            String key = traceKey(t);
+            LongAdder seen = traces.get(key);
+            if ((null == seen) && (MAX_TRACES > traces.size())) {
+                LongAdder first = new LongAdder();
+                seen = traces.putIfAbsent(key, first);
+                if (null == seen) {
+                    seen = first;
+                    logPrinter.printStackTrace(t);
+                }
+            }
+            if (null != seen)
+                seen.increment();
         }
         if (badInsertPrinter != null) {
             badInsertPrinter.println(line);
         }
     }
 
+    private static String traceKey(Throwable t) {
+        StringBuilder sb = new StringBuilder();
+        for (Throwable c = t; null != c; c = (c.getCause() == c) ? null : c.getCause())
+            sb.append(c.getClass().getName()).append('@')
+                    .append(Arrays.hashCode(c.getStackTrace())).append(';');
+        return sb.toString();
+    }
+
     public void onTooManyFailures() {
         if (logPrinter != null) {
             logPrinter.println("Too many INSERT errors ... Stopping");
         }
     }
 
+    public void onCleanup() {
+        if (null != sampler)
+            sampler.close();
+        if (null != logPrinter) {
+            for (Map.Entry<String, LongAdder> me : traces.entrySet()) {
+                long count = me.getValue().sum();
+                if (1 < count)
+                    logPrinter.println("Stack trace of " + me.getKey().substring(0, me.getKey().indexOf('@'))
+                            + " occurred " + count + " times (logged once)");
+            }
+        }
+    }
 }
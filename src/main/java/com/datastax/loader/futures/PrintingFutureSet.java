@@ -1,14 +1,46 @@
 package com.datastax.loader.futures;
 
-import java.io.PrintStream;
+import com.datastax.driver.core.Session;
+import com.datastax.loader.util.AsyncLineWriter;
+import com.datastax.loader.util.LoaderMetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PrintingFutureSet extends ActionFutureSet {
 
     public PrintingFutureSet(int inSize, long inQueryTimeout,
                              long inMaxInsertErrors,
-                             PrintStream inLogPrinter,
-                             PrintStream inBadInsertPrinter) {
+                             AsyncLineWriter inLogPrinter,
+                             AsyncLineWriter inBadInsertPrinter) {
         super(inSize, inQueryTimeout, inMaxInsertErrors,
                 new PrintingFutureAction(inLogPrinter, inBadInsertPrinter));
     }
+
+    public PrintingFutureSet(Session inSession, InFlightBudget inBudget,
+                             InFlightBudget inByteBudget,
+                             HostThrottle inHostThrottle, RetryQueue inRetryQueue,
+                             long inQueryTimeout,
+                             long inMaxInsertErrors,
+                             AsyncLineWriter inLogPrinter,
+                             AsyncLineWriter inBadInsertPrinter,
+                             LoaderMetrics inMetrics) {
+        this(inSession, inBudget, inByteBudget, inHostThrottle, inRetryQueue, inQueryTimeout,
+                inMaxInsertErrors, new AtomicLong(0), inLogPrinter, inBadInsertPrinter,
+                inMetrics);
+    }
+
+    // inInsertErrors may be shared with other sets, which then stop
+    // together once inMaxInsertErrors is reached
+    public PrintingFutureSet(Session inSession, InFlightBudget inBudget,
+                             InFlightBudget inByteBudget,
+                             HostThrottle inHostThrottle, RetryQueue inRetryQueue,
+                             long inQueryTimeout,
+                             long inMaxInsertErrors, AtomicLong inInsertErrors,
+                             AsyncLineWriter inLogPrinter,
+                             AsyncLineWriter inBadInsertPrinter,
+                             LoaderMetrics inMetrics) {
+        super(inSession, inBudget, inByteBudget, inHostThrottle, inRetryQueue, inQueryTimeout,
+                inMaxInsertErrors, inInsertErrors, inMetrics,
+                new PrintingFutureAction(inLogPrinter, inBadInsertPrinter));
+    }
 }
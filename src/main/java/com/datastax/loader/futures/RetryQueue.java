@@ -0,0 +1,99 @@
+package com.datastax.loader.futures;
+
+import com.datastax.driver.core.Session;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sends failed requests again later instead of giving up on them right
+// away.  The delay grows exponentially with every attempt, with full
+// jitter, so a node that comes back is not hit by every retry at once.
+// Retries have their own in-flight limit, on top of the normal window,
+// and the bytes held for retrying are capped.  Nothing here blocks the
+// caller - it is used from the driver callbacks.  One queue is shared by
+// all tasks.  Retries go out through a session of their own, under the
+// rate limiter: they were counted when first sent, and waiting for a rate
+// permit would hold up every other retry on the one scheduler thread.
+public class RetryQueue {
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "retry-queue");
+                t.setDaemon(true);
+                return t;
+            });
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final long maxBytes;
+    private final AtomicLong heldBytes = new AtomicLong(0);
+    private final Session session;
+
+    // inSession may be null, for retries through the sender's own session
+    public RetryQueue(int inMaxRetries, long inBaseDelayMillis,
+                      long inMaxDelayMillis, int inMaxInFlight, long inMaxBytes,
+                      Session inSession) {
+        maxRetries = inMaxRetries;
+        baseDelayMillis = inBaseDelayMillis;
+        maxDelayMillis = inMaxDelayMillis;
+        maxInFlight = inMaxInFlight;
+        inFlight = new Semaphore(inMaxInFlight);
+        maxBytes = inMaxBytes;
+        session = inSession;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    // Reserves room for a request of this size until it is sent again.
+    // Returns false if the queue is full.
+    public boolean hold(int bytes) {
+        while (true) {
+            long held = heldBytes.get();
+            if (held + bytes > maxBytes)
+                return false;
+            if (heldBytes.compareAndSet(held, held + bytes))
+                return true;
+        }
+    }
+
+    // Runs send after the backoff for this attempt (1 for the first
+    // retry), once a retry is allowed in flight.  send must call
+    // release() when its request completes.
+    public void schedule(int attempt, int bytes, Runnable send) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        scheduler.schedule(() -> trySend(bytes, send), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void trySend(int bytes, Runnable send) {
+        if (!inFlight.tryAcquire()) {
+            scheduler.schedule(() -> trySend(bytes, send), baseDelayMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        heldBytes.addAndGet(-bytes);
+        send.run();
+    }
+
+    public void release() {
+        inFlight.release();
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getHeldBytes() {
+        return heldBytes.get();
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.datastax.loader.parser;
 
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.exceptions.InvalidTypeException;
 import com.univocity.parsers.csv.CsvParser;
@@ -33,9 +34,14 @@ public class DelimParser {
     private final List<Object> elements;
     private final String delimiter;
     private final String nullString;
+    private final char delimChar;
+    private final char quoteChar;
     private final List<Boolean> skip;
     private int parsersSize;
     private CsvParser csvp = null;
+    private final LineTokenizer tokenizer;
+    private String errorType = null;
+    private String errorMessage = null;
 
     public DelimParser(String inDelimiter, String inNullString) {
         this(inDelimiter, inNullString, DEFAULT_QUOTE, DEFAULT_ESCAPE, null);
@@ -57,6 +63,7 @@ public class DelimParser {
             nullString = inNullString;
         }
         char delim = ("\\t".equals(delimiter)) ? '\t' : delimiter.charAt(0);
+        delimChar = delim;
 
         char quote;
         if (null == inQuote) {
@@ -64,6 +71,7 @@ public class DelimParser {
         } else {
             quote = inQuote;
         }
+        quoteChar = quote;
 
         char escape;
         if (null == inEscape) {
@@ -81,6 +89,8 @@ public class DelimParser {
             settings.setMaxCharsPerColumn(inMaxCharsPerColumn);
         }
         csvp = new CsvParser(settings);
+        tokenizer = LineTokenizer.supports(delim, quote, escape)
+                ? new LineTokenizer(delim, quote, escape, inMaxCharsPerColumn) : null;
     }
 
     // Adds a parser to the list
@@ -96,17 +106,37 @@ public class DelimParser {
         parsersSize = parsers.size();
     }
 
+    // Puts a ValueDictionary of up to maxSize values in front of the
+    // parser of the column-th column that is not skipped - 0 removes it
+    public void setDictionary(int column, int maxSize) {
+        int c = 0;
+        for (int i = 0; i < parsersSize; i++) {
+            if (skip.get(i))
+                continue;
+            if (column == c++) {
+                Parser p = parsers.get(i);
+                if (p instanceof DictionaryParser)
+                    p = ((DictionaryParser) p).getParser();
+                parsers.set(i, (0 < maxSize) ? new DictionaryParser(p, maxSize) : p);
+                return;
+            }
+        }
+        throw new IndexOutOfBoundsException("No column " + column);
+    }
+
     public List<Object> parse(String line) {
         //return parseComplex(line);
-        return parseWithUnivocity(line);
+        return parseFields(split(line));
     }
 
+    // Same as parse(), but every line goes through the CsvParser
     public List<Object> parseWithUnivocity(String line) {
-        String[] row = csvp.parseLine(line);
-        if (row.length != parsersSize) {
-            System.err.println("Row has different number of fields (" + row.length + ") than expected (" + parsersSize + ")");
+        return parseFields(checkFieldCount(splitWithUnivocity(line)));
+    }
+
+    private List<Object> parseFields(String[] row) {
+        if (null == row)
             return null;
-        }
         elements.clear();
         Object toAdd;
         for (int i = 0; i < parsersSize; i++) {
@@ -121,10 +151,12 @@ public class DelimParser {
                 if (!skip.get(i))
                     elements.add(toAdd);
             } catch (NumberFormatException e) {
-                System.err.println(String.format("Invalid number in input number %d: %s", i, e.getMessage()));
+                errorMessage = String.format("Invalid number in input number %d: %s", i, e.getMessage());
+                errorType = typeOf(parsers.get(i));
                 return null;
             } catch (ParseException pe) {
-                System.err.println(String.format("Invalid format in input %d: %s", i, pe.getMessage()));
+                errorMessage = String.format("Invalid format in input %d: %s", i, pe.getMessage());
+                errorType = typeOf(parsers.get(i));
                 return null;
             }
         }
@@ -132,6 +164,56 @@ public class DelimParser {
         return elements;
     }
 
+    // Parses lines straight into statements of inStatement, whose bind
+    // markers are the columns that are not skipped, in order
+    public RowBinder binder(PreparedStatement inStatement, boolean inNullsUnset) {
+        return new RowBinder(this, new ArrayList<>(parsers), new ArrayList<>(skip),
+                nullString, inStatement, inNullsUnset);
+    }
+
+    // The fields of the line, or null if there are too many or too few.
+    // Lines without quotes or escapes are split by the LineTokenizer.
+    String[] split(String line) {
+        String[] row = (null == tokenizer) ? null : tokenizer.tokenize(line);
+        return checkFieldCount((null == row) ? splitWithUnivocity(line) : row);
+    }
+
+    String[] splitWithUnivocity(String line) {
+        return csvp.parseLine(line);
+    }
+
+    private String[] checkFieldCount(String[] row) {
+        if (row.length != parsersSize) {
+            errorMessage = "Row has different number of fields (" + row.length + ") than expected (" + parsersSize + ")";
+            errorType = "fieldCount";
+            return null;
+        }
+        return row;
+    }
+
+    void setError(String inErrorType, String inErrorMessage) {
+        errorType = inErrorType;
+        errorMessage = inErrorMessage;
+    }
+
+    // What the last failed parse() tripped over: "fieldCount", or the
+    // type of the column (e.g. "Integer", "Date")
+    public String getErrorType() {
+        return errorType;
+    }
+
+    // ... and what went wrong, for the log
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    static String typeOf(Parser p) {
+        if (p instanceof DictionaryParser)
+            p = ((DictionaryParser) p).getParser();
+        String name = p.getClass().getSimpleName();
+        return name.endsWith("Parser") ? name.substring(0, name.length() - 6) : name;
+    }
+
     public String format(Row row) throws IndexOutOfBoundsException, InvalidTypeException {
         String s;
         StringBuilder retVal = new StringBuilder();
@@ -147,4 +229,24 @@ public class DelimParser {
         }
         return retVal.toString();
     }
+
+    // Same as format(Row), for values that did not come from Cassandra.
+    // Unquoted values that contain the delimiter (e.g. dates in some
+    // default formats) are quoted, so the line parses back.
+    public String format(List<Object> values) {
+        StringBuilder retVal = new StringBuilder();
+        for (int i = 0; i < parsersSize; i++) {
+            Object o = values.get(i);
+            String s = (null == o) ? null : parsers.get(i).format(o);
+            if (null == s)
+                s = nullString;
+            if (0 < i)
+                retVal.append(delimChar);
+            if ((0 <= s.indexOf(delimChar)) && (quoteChar != s.charAt(0)))
+                retVal.append(quoteChar).append(s).append(quoteChar);
+            else
+                retVal.append(s);
+        }
+        return retVal.toString();
+    }
 }
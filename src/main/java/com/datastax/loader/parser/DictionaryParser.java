@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.exceptions.InvalidTypeException;
+
+import java.text.ParseException;
+
+// One column's parser, with a ValueDictionary in front of it
+public class DictionaryParser implements Parser {
+    private final Parser parser;
+    private final int maxSize;
+    private final ValueDictionary<Object> dictionary;
+
+    public DictionaryParser(Parser inParser, int inMaxSize) {
+        parser = inParser;
+        maxSize = inMaxSize;
+        dictionary = new ValueDictionary<>(inMaxSize);
+    }
+
+    public Object parse(String toparse) throws ParseException {
+        Object value = dictionary.get(toparse);
+        if (null == value) {
+            value = parser.parse(toparse);
+            if (null != value)
+                dictionary.put(toparse, value);
+        }
+        return value;
+    }
+
+    public String format(Row row, int index) throws IndexOutOfBoundsException, InvalidTypeException {
+        return parser.format(row, index);
+    }
+
+    public String format(Object o) {
+        return parser.format(o);
+    }
+
+    public Parser getParser() {
+        return parser;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
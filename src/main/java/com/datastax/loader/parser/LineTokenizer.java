@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import java.util.Arrays;
+
+// Splits lines whose fields are plain or simply quoted ("text", as the
+// unloader writes it), which is most lines of most loads, without going
+// through univocity's per-character state machine.  The scans are
+// String.indexOf(), which HotSpot compiles to SIMD compares over the
+// line.  Lines with an escape or comment character, doubled quotes, or
+// anything after a closing quote return null, and go to the CsvParser.
+//
+// The fields come out as the CsvParser would return them: whitespace
+// (anything up to ' ') around a field or its quotes is trimmed, and
+// empty fields are null.
+final class LineTokenizer {
+    // CsvParserSettings defaults
+    private static final int MAX_COLUMNS = 512;
+    private static final int MAX_CHARS_PER_COLUMN = 4096;
+    private static final char COMMENT = '#';
+
+    private final char delimiter;
+    private final char quote;
+    private final char escape;
+    private final int maxCharsPerColumn;
+    private final String[] fields = new String[MAX_COLUMNS];
+
+    LineTokenizer(char inDelimiter, char inQuote, char inEscape, Integer inMaxCharsPerColumn) {
+        delimiter = inDelimiter;
+        quote = inQuote;
+        escape = inEscape;
+        maxCharsPerColumn = (null == inMaxCharsPerColumn) ? MAX_CHARS_PER_COLUMN : inMaxCharsPerColumn;
+    }
+
+    // Whether this tokenizer can split anything at all
+    static boolean supports(char delimiter, char quote, char escape) {
+        return (delimiter != quote) && (delimiter != escape) && (delimiter != COMMENT);
+    }
+
+    // The fields of the line, or null if the CsvParser has to do it
+    String[] tokenize(String line) {
+        int length = line.length();
+        if ((0 == length) || (COMMENT == line.charAt(0)) || (0 <= line.indexOf(escape)))
+            return null;
+        int nextQuote = line.indexOf(quote);
+        int count = 0;
+        int start = 0;
+        while (true) {
+            if (MAX_COLUMNS == count)
+                return null;
+            int end;
+            int first = skipWhitespace(line, start, length);
+            if ((first < length) && (quote == line.charAt(first))) {
+                // "...", then only whitespace up to the delimiter.  The
+                // CsvParser has its own rules for what follows a closing
+                // quote when the delimiter is whitespace.
+                if (delimiter <= ' ')
+                    return null;
+                int close = line.indexOf(quote, first + 1);
+                if ((-1 == close) || (close - first - 1 > maxCharsPerColumn))
+                    return null;
+                end = skipWhitespace(line, close + 1, length);
+                if ((end < length) && (delimiter != line.charAt(end)))
+                    return null;
+                fields[count++] = (close == first + 1) ? null : line.substring(first + 1, close);
+                nextQuote = (end < length) ? line.indexOf(quote, end) : -1;
+            } else {
+                end = line.indexOf(delimiter, start);
+                if (-1 == end)
+                    end = length;
+                // a quote inside an unquoted field
+                if (((-1 != nextQuote) && (nextQuote < end)) || (end - start > maxCharsPerColumn))
+                    return null;
+                fields[count++] = field(line, first, end);
+            }
+            if (end == length)
+                break;
+            start = end + 1;
+        }
+        // a blank line is no record at all
+        if ((1 == count) && (null == fields[0]))
+            return null;
+        String[] row = Arrays.copyOf(fields, count);
+        Arrays.fill(fields, 0, count, null);
+        return row;
+    }
+
+    // the delimiter may be whitespace itself, e.g. a tab
+    private int skipWhitespace(String line, int start, int end) {
+        char c;
+        while ((start < end) && ((c = line.charAt(start)) <= ' ') && (delimiter != c))
+            start++;
+        return start;
+    }
+
+    private static String field(String line, int start, int end) {
+        while ((start < end) && (line.charAt(start) <= ' '))
+            start++;
+        while ((end > start) && (line.charAt(end - 1) <= ' '))
+            end--;
+        return (start == end) ? null : line.substring(start, end);
+    }
+}
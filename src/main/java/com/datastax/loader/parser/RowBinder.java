@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.TypeCodec;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.List;
+
+// Parses a line straight into a BoundStatement.  The per-column work of
+// DelimParser.parse() - the null check, the skip check, the parser and
+// then the codec lookup in BoundStatement.bind() - is decided once, when
+// the binder is built, and composed into one MethodHandle per schema:
+// skipped columns are left out, every column has its parser and codec
+// bound in, and no List or Object[] is filled in between.
+//
+// The handle is per schema, so it lives in an instance field, which the
+// JIT does not treat as a constant: bind() calls the composed chain, it
+// does not inline it, and the parsers and codecs are not folded into the
+// loop.  What is saved is the per-column decisions and boxing, not the
+// calls.
+public class RowBinder {
+    private static final MethodHandle ELEMENT;
+    private static final MethodHandle IS_NULL;
+    private static final MethodHandle PARSE;
+    private static final MethodHandle SET;
+    private static final MethodHandle SET_TO_NULL;
+    private static final MethodHandle UNSET;
+    private static final MethodHandle FAIL;
+    private static final MethodHandle DONE;
+    private static final MethodHandle SET_CACHED;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ELEMENT = MethodHandles.arrayElementGetter(String[].class);
+            IS_NULL = lookup.findStatic(RowBinder.class, "isNull",
+                    MethodType.methodType(boolean.class, String.class, String.class));
+            PARSE = lookup.findVirtual(Parser.class, "parse",
+                    MethodType.methodType(Object.class, String.class));
+            SET = lookup.findVirtual(BoundStatement.class, "set",
+                    MethodType.methodType(BoundStatement.class, int.class, Object.class, TypeCodec.class));
+            SET_TO_NULL = lookup.findVirtual(BoundStatement.class, "setToNull",
+                    MethodType.methodType(BoundStatement.class, int.class));
+            UNSET = lookup.findVirtual(BoundStatement.class, "unset",
+                    MethodType.methodType(void.class, int.class));
+            FAIL = lookup.findStatic(RowBinder.class, "fail",
+                    MethodType.methodType(void.class, int.class, Exception.class));
+            DONE = lookup.findStatic(RowBinder.class, "done",
+                    MethodType.methodType(void.class, String[].class, BoundStatement.class));
+            SET_CACHED = lookup.findStatic(RowBinder.class, "setCached",
+                    MethodType.methodType(void.class, ValueDictionary.class, Parser.class, TypeCodec.class,
+                            int.class, String.class, BoundStatement.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final DelimParser delimParser;
+    private final PreparedStatement statement;
+    private final List<Parser> parsers;
+    // (String[] row, BoundStatement bound)void
+    private final MethodHandle bindRow;
+
+    RowBinder(DelimParser inDelimParser, List<Parser> inParsers, List<Boolean> inSkip,
+              String inNullString, PreparedStatement inStatement, boolean inNullsUnset) {
+        delimParser = inDelimParser;
+        statement = inStatement;
+        parsers = inParsers;
+        ColumnDefinitions variables = statement.getVariables();
+        CodecRegistry registry = statement.getCodecRegistry();
+        if (null == registry)
+            registry = CodecRegistry.DEFAULT_INSTANCE;
+
+        // Built back to front, so the columns are bound in input order
+        MethodHandle handle = DONE;
+        int bindIndex = inParsers.size() - 1;
+        for (Boolean s : inSkip)
+            if (s)
+                bindIndex--;
+        for (int i = inParsers.size() - 1; i >= 0; i--) {
+            if (inSkip.get(i))
+                continue;
+            MethodHandle column = column(i, bindIndex, inParsers.get(i),
+                    registry.codecFor(variables.getType(bindIndex)),
+                    inNullString, inNullsUnset);
+            handle = MethodHandles.foldArguments(handle, column);
+            bindIndex--;
+        }
+        bindRow = handle;
+    }
+
+    // (String[] row, BoundStatement bound)void for input column i, bound
+    // to the i-th bind marker
+    private static MethodHandle column(int i, int bindIndex, Parser parser,
+                                       TypeCodec<?> codec, String nullString,
+                                       boolean nullsUnset) {
+        MethodHandle element = MethodHandles.insertArguments(ELEMENT, 1, i);
+        MethodType rowType = MethodType.methodType(void.class, String[].class, BoundStatement.class);
+        MethodHandle parseAndSet;
+        if (parser instanceof DictionaryParser) {
+            // (String, BoundStatement)void, through the serialized values
+            DictionaryParser dp = (DictionaryParser) parser;
+            @SuppressWarnings("unchecked")
+            TypeCodec<Object> objectCodec = (TypeCodec<Object>) codec;
+            MethodHandle setCached = MethodHandles.insertArguments(SET_CACHED, 0,
+                    new ValueDictionary<ByteBuffer>(dp.getMaxSize()), dp.getParser(), objectCodec, bindIndex);
+            parseAndSet = MethodHandles.filterArguments(setCached, 0, element);
+        } else {
+            // (String[])Object
+            MethodHandle parse = MethodHandles.filterReturnValue(element, PARSE.bindTo(parser));
+            // (BoundStatement, Object)void
+            MethodHandle set = MethodHandles.insertArguments(SET, 1, bindIndex)
+                    .asType(MethodType.methodType(BoundStatement.class, BoundStatement.class, Object.class, TypeCodec.class));
+            set = MethodHandles.insertArguments(set, 2, codec)
+                    .asType(MethodType.methodType(void.class, BoundStatement.class, Object.class));
+            // (BoundStatement, String[])void, then swapped
+            parseAndSet = MethodHandles.filterArguments(set, 1, parse);
+            parseAndSet = MethodHandles.permuteArguments(parseAndSet, rowType, 1, 0);
+        }
+
+        // (BoundStatement)void
+        MethodHandle setNull = nullsUnset
+                ? MethodHandles.insertArguments(UNSET, 1, bindIndex)
+                : MethodHandles.insertArguments(SET_TO_NULL, 1, bindIndex)
+                        .asType(MethodType.methodType(void.class, BoundStatement.class));
+        setNull = MethodHandles.dropArguments(setNull, 0, String[].class);
+
+        // (String[])boolean
+        MethodHandle isNull = MethodHandles.filterReturnValue(element,
+                MethodHandles.insertArguments(IS_NULL, 0, nullString));
+        MethodHandle bind = MethodHandles.guardWithTest(isNull, setNull, parseAndSet);
+
+        // Remember which input column did not parse
+        MethodHandle fail = MethodHandles.dropArguments(
+                MethodHandles.insertArguments(FAIL, 0, i), 1, String[].class, BoundStatement.class);
+        bind = MethodHandles.catchException(bind, NumberFormatException.class,
+                fail.asType(MethodType.methodType(void.class, NumberFormatException.class, String[].class, BoundStatement.class)));
+        bind = MethodHandles.catchException(bind, ParseException.class,
+                fail.asType(MethodType.methodType(void.class, ParseException.class, String[].class, BoundStatement.class)));
+        return bind;
+    }
+
+    // The bound line, or null if it did not parse - see
+    // DelimParser.getErrorType() and getErrorMessage() for why
+    public BoundStatement bind(String line) {
+        String[] row = delimParser.split(line);
+        if (null == row)
+            return null;
+        BoundStatement bound = new BoundStatement(statement);
+        try {
+            bindRow.invokeExact(row, bound);
+        } catch (ColumnException ce) {
+            Exception e = (Exception) ce.getCause();
+            if (e instanceof NumberFormatException)
+                delimParser.setError(DelimParser.typeOf(parsers.get(ce.column)),
+                        String.format("Invalid number in input number %d: %s", ce.column, e.getMessage()));
+            else
+                delimParser.setError(DelimParser.typeOf(parsers.get(ce.column)),
+                        String.format("Invalid format in input %d: %s", ce.column, e.getMessage()));
+            return null;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+        return bound;
+    }
+
+    private static boolean isNull(String nullString, String s) {
+        return (null == s) || ((null != nullString) && nullString.equalsIgnoreCase(s));
+    }
+
+    // Dictionary columns are text, whose serialized form does not depend
+    // on the protocol version.  setBytesUnsafe() binds a duplicate, so one
+    // buffer can go out with many statements.
+    private static void setCached(ValueDictionary<ByteBuffer> dictionary, Parser parser,
+                                  TypeCodec<Object> codec, int index, String field,
+                                  BoundStatement bound) throws ParseException {
+        if (!dictionary.isEnabled()) {
+            bound.set(index, parser.parse(field), codec);
+            return;
+        }
+        ByteBuffer bytes = dictionary.get(field);
+        if (null == bytes) {
+            bytes = codec.serialize(parser.parse(field), ProtocolVersion.NEWEST_SUPPORTED);
+            dictionary.put(field, bytes);
+        }
+        bound.setBytesUnsafe(index, bytes);
+    }
+
+    private static void fail(int column, Exception e) {
+        throw new ColumnException(column, e);
+    }
+
+    private static void done(String[] row, BoundStatement bound) {
+    }
+
+    private static class ColumnException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final int column;
+
+        ColumnException(int inColumn, Exception inCause) {
+            super(inCause);
+            column = inColumn;
+        }
+    }
+}
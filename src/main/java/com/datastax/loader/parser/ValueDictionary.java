@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.parser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A bounded, least-recently-used map from the text of a field to what it
+// parses (or serializes) to, so low-cardinality columns - country, status,
+// device type - hand out one instance per value instead of one per row.
+// It watches its own hit rate and switches itself off for good when the
+// column turns out to have too many distinct values to be worth it.
+// Not thread-safe: like the parsers, there is one per thread.
+public class ValueDictionary<V> {
+    // lookups per hit-rate check
+    private static final int WINDOW = 8192;
+    // a window with fewer hits than this fraction disables the dictionary
+    private static final double MIN_HIT_RATE = 0.5;
+
+    private final Map<String, V> values;
+    private boolean enabled = true;
+    private int lookups = 0;
+    private int hits = 0;
+
+    public ValueDictionary(int inMaxSize) {
+        values = new LruMap<>(inMaxSize);
+    }
+
+    // The value for key, or null if it is not known (yet) - the caller
+    // then parses the field and put()s it
+    public V get(String key) {
+        if (!enabled)
+            return null;
+        V value = values.get(key);
+        if (null != value)
+            hits++;
+        if (WINDOW == ++lookups) {
+            if (hits < WINDOW * MIN_HIT_RATE) {
+                enabled = false;
+                values.clear();
+            }
+            lookups = 0;
+            hits = 0;
+        }
+        return value;
+    }
+
+    public void put(String key, V value) {
+        if (enabled)
+            values.put(key, value);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // In access order, dropping the least recently used entry
+    private static class LruMap<V> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        LruMap(int inMaxSize) {
+            super(16, 0.75f, true);
+            maxSize = inMaxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.datastax.loader.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Writes lines to a file off the calling thread.  Lines go into a queue,
+// and one shared background thread writes them out in batches for all
+// open writers.  println() never blocks, so it is safe in driver
+// callbacks - if a bounded queue is full the line is dropped and counted.
+// put() waits for room instead, for threads that can afford to slow down.
+// Lossless writers (the bad-row files, which get replayed) have an
+// unbounded queue and never drop a line.
+// The file is only created with the first line, so inputs that load
+// cleanly do not leave (or pay for) empty files behind.
+public class AsyncLineWriter {
+    private static final int CAPACITY = 65536;
+    private static final int BATCH = 4096;
+    private static final ExecutorService writerThread =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "sink-writer");
+                t.setDaemon(true);
+                return t;
+            });
+    private final String name;
+    private volatile boolean written = false;
+    private Writer out = null;
+    // linked, so that writers that never see a line stay small
+    private final BlockingQueue<String> queue;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final LongAdder dropped = new LongAdder();
+    private final List<String> batch = new ArrayList<>();
+    private boolean closed = false;
+    private IOException error = null;
+
+    public AsyncLineWriter(String fname) {
+        this(fname, false);
+    }
+
+    public AsyncLineWriter(String fname, boolean inLossless) {
+        name = fname;
+        queue = inLossless ? new LinkedBlockingQueue<>() : new LinkedBlockingQueue<>(CAPACITY);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Whether anything was written so far, i.e. whether the file exists
+    public boolean isWritten() {
+        return written;
+    }
+
+    public void println(String line) {
+        written = true;
+        if (!queue.offer(line)) {
+            dropped.increment();
+            return;
+        }
+        schedule();
+    }
+
+    public void put(String line) throws InterruptedException {
+        written = true;
+        queue.put(line);
+        schedule();
+    }
+
+    public void printStackTrace(Throwable t) {
+        StringWriter sw = new StringWriter();
+        t.printStackTrace(new PrintWriter(sw));
+        println(sw.toString().trim());
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true))
+            writerThread.execute(this::drain);
+    }
+
+    // Runs on the writer thread.  Writes at most one batch and then queues
+    // itself again, so that one busy writer does not starve the others.
+    private void drain() {
+        writeBatch();
+        scheduled.set(false);
+        if (queue.isEmpty()) {
+            flush();
+            // a line may have come in before scheduled was cleared
+            if (queue.isEmpty())
+                return;
+        }
+        schedule();
+    }
+
+    private void writeBatch() {
+        batch.clear();
+        queue.drainTo(batch, BATCH);
+        if (closed || (null != error) || batch.isEmpty())
+            return;
+        try {
+            if (null == out)
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(name)));
+            for (String line : batch) {
+                out.write(line);
+                out.write('\n');
+            }
+        } catch (IOException ioe) {
+            error = ioe;
+            System.err.println("Error writing " + name + ": " + ioe.getMessage());
+        }
+    }
+
+    private void flush() {
+        if (closed || (null != error) || (null == out))
+            return;
+        try {
+            out.flush();
+        } catch (IOException ioe) {
+            error = ioe;
+            System.err.println("Error writing " + name + ": " + ioe.getMessage());
+        }
+    }
+
+    // Writes out everything queued so far and closes the file
+    public void close() throws IOException {
+        if (!written)
+            return;
+        try {
+            writerThread.submit(() -> {
+                while (!queue.isEmpty())
+                    writeBatch();
+                closed = true;
+                if (null != out)
+                    out.close();
+                return null;
+            }).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing " + name, ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Error closing " + name, ee.getCause());
+        }
+        if (0 < dropped.sum())
+            System.err.println("*** WARNING: " + dropped.sum() + " lines could not be written to "
+                    + name + " in time and were dropped");
+        if (null != error)
+            throw error;
+    }
+}
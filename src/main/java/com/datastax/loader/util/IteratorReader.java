@@ -0,0 +1,27 @@
+package com.datastax.loader.util;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Iterator;
+
+// Hands out the lines of an Iterator through readLine(), so that code
+// reading a BufferedReader line by line can load them without the lines
+// being joined and split again.  Only readLine() and close() are meant
+// to be used.
+public class IteratorReader extends BufferedReader {
+    private final Iterator<String> lines;
+
+    public IteratorReader(Iterator<String> inLines) {
+        super(new StringReader(""), 1);
+        lines = inLines;
+    }
+
+    @Override
+    public String readLine() {
+        return lines.hasNext() ? lines.next() : null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.util;
+
+import com.codahale.metrics.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+// Metrics of the load/unload pipeline, by stage.  Published over JMX
+// (domain com.datastax.loader.metrics) and optionally to CSV files.
+public class LoaderMetrics {
+    public static final String JMX_DOMAIN = "com.datastax.loader.metrics";
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Meter linesRead = registry.meter("lines.read");
+    private final Meter linesParsed = registry.meter("lines.parsed");
+    private final Meter parseErrors = registry.meter("lines.parseErrors");
+    private final Meter bytesRead = registry.meter("bytes.read");
+    private final Meter bytesWritten = registry.meter("bytes.written");
+    private final Timer bind = registry.timer("bind");
+    private final Timer submit = registry.timer("insert.submit");
+    private final Timer insertLatency = registry.timer("insert.latency");
+    private final Meter insertErrors = registry.meter("insert.errors");
+    private final Meter insertRetries = registry.meter("insert.retries");
+    private final Counter deferred = registry.counter("queue.deferred");
+    private final Counter inputsQueued = registry.counter("queue.inputs");
+    private final Meter unloadRows = registry.meter("unload.rows");
+    private final Counter unloadPages = registry.counter("unload.pages");
+    private JmxReporter jmxReporter = null;
+    private CsvReporter csvReporter = null;
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    public void start(String csvDir, long periodSeconds) {
+        jmxReporter = JmxReporter.forRegistry(registry).inDomain(JMX_DOMAIN)
+                .convertDurationsTo(TimeUnit.MILLISECONDS).build();
+        jmxReporter.start();
+        if (null != csvDir) {
+            csvReporter = CsvReporter.forRegistry(registry)
+                    .convertDurationsTo(TimeUnit.MILLISECONDS)
+                    .build(new File(csvDir));
+            csvReporter.start(periodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // Writes a last CSV sample, so short runs are covered as well
+    public void stop() {
+        if (null != csvReporter) {
+            csvReporter.report();
+            csvReporter.stop();
+            csvReporter = null;
+        }
+        if (null != jmxReporter) {
+            jmxReporter.stop();
+            jmxReporter = null;
+        }
+    }
+
+    public void registerGauge(String name, IntSupplier supplier) {
+        registry.register(name, (Gauge<Integer>) supplier::getAsInt);
+    }
+
+    // e.g. the driver's own metrics (request timer, retries, connections)
+    public void registerAll(String prefix, MetricSet metrics) {
+        registry.register(prefix, metrics);
+    }
+
+    public Meter getLinesRead() {
+        return linesRead;
+    }
+
+    public Meter getLinesParsed() {
+        return linesParsed;
+    }
+
+    public Meter getParseErrors() {
+        return parseErrors;
+    }
+
+    public Counter getParseErrors(String type) {
+        return registry.counter(MetricRegistry.name("parseErrors", type));
+    }
+
+    public Meter getBytesRead() {
+        return bytesRead;
+    }
+
+    public Meter getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public Timer getBind() {
+        return bind;
+    }
+
+    public Timer getSubmit() {
+        return submit;
+    }
+
+    public Timer getInsertLatency() {
+        return insertLatency;
+    }
+
+    public Meter getInsertErrors() {
+        return insertErrors;
+    }
+
+    public Meter getInsertRetries() {
+        return insertRetries;
+    }
+
+    public Counter getDeferred() {
+        return deferred;
+    }
+
+    public Counter getInputsQueued() {
+        return inputsQueued;
+    }
+
+    public Meter getUnloadRows() {
+        return unloadRows;
+    }
+
+    public Counter getUnloadPages() {
+        return unloadPages;
+    }
+}
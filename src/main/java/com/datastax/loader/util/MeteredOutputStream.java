@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Brian Hess
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.loader.util;
+
+import com.codahale.metrics.Meter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Marks every byte written on a Meter
+public class MeteredOutputStream extends FilterOutputStream {
+    private final Meter meter;
+
+    public MeteredOutputStream(OutputStream out, Meter inMeter) {
+        super(out);
+        meter = inMeter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        meter.mark();
+    }
+
+    // FilterOutputStream would write one byte at a time
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        meter.mark(len);
+    }
+}
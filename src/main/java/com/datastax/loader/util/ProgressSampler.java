@@ -0,0 +1,53 @@
+package com.datastax.loader.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+// Reports progress off the hot path.  The counting threads only bump a
+// LongAdder; one shared background thread samples it and calls the
+// reporter whenever the count has crossed another multiple of the period.
+public class ProgressSampler {
+    private static final long SAMPLE_MILLIS = 100;
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "progress-sampler");
+                t.setDaemon(true);
+                return t;
+            });
+    private final LongAdder counter;
+    private final long period;
+    private final LongConsumer reporter;
+    private final ScheduledFuture<?> future;
+    private long lastReported = 0;
+
+    public ProgressSampler(LongAdder inCounter, long inPeriod, LongConsumer inReporter) {
+        counter = inCounter;
+        period = inPeriod;
+        reporter = inReporter;
+        if (0 < period)
+            future = scheduler.scheduleWithFixedDelay(this::sample,
+                    SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        else
+            future = null;
+    }
+
+    private synchronized void sample() {
+        long current = counter.sum();
+        if (current / period > lastReported / period) {
+            reporter.accept(current);
+            lastReported = current;
+        }
+    }
+
+    // Stops sampling, after one last look at the counter
+    public void close() {
+        if (null != future) {
+            future.cancel(false);
+            sample();
+        }
+    }
+}
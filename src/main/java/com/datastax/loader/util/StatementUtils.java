@@ -0,0 +1,34 @@
+package com.datastax.loader.util;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Statement;
+
+import java.nio.ByteBuffer;
+
+public class StatementUtils {
+    // Serialized size of the bound values (the bulk of what goes over the
+    // wire).  Other statements count as 0.
+    public static int serializedSize(Statement statement) {
+        if (statement instanceof BoundStatement) {
+            BoundStatement bound = (BoundStatement) statement;
+            int size = 0;
+            int numVariables = bound.preparedStatement().getVariables().size();
+            for (int i = 0; i < numVariables; i++) {
+                if (!bound.isSet(i))
+                    continue;
+                ByteBuffer bb = bound.getBytesUnsafe(i);
+                if (null != bb)
+                    size += bb.remaining();
+            }
+            return size;
+        }
+        if (statement instanceof BatchStatement) {
+            int size = 0;
+            for (Statement s : ((BatchStatement) statement).getStatements())
+                size += serializedSize(s);
+            return size;
+        }
+        return 0;
+    }
+}